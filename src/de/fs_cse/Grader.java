@@ -0,0 +1,37 @@
+package de.fs_cse;
+
+import de.fs_cse.core.BatchJob;
+import de.fs_cse.core.BatchResult;
+import de.fs_cse.core.BatchRunner;
+
+import java.nio.file.Path;
+import java.util.List;
+
+//grades a directory of program images against their test cases on all cores, see BatchRunner.loadDirectory for the layout
+public class Grader {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: Grader <directory> [max instructions] [threads]");
+            System.exit(2);
+        }
+        long maxInstructions = args.length > 1 ? Long.parseLong(args[1]) : 100_000_000L;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        List<BatchJob> jobs = BatchRunner.loadDirectory(Path.of(args[0]));
+        BatchRunner runner = new BatchRunner(threads, maxInstructions);
+        long start = System.nanoTime();
+        List<BatchResult> results = runner.run(jobs);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        runner.shutdown();
+
+        int passed = 0;
+        for (BatchResult result : results) {
+            if (result.status == BatchResult.Status.PASS) passed++;
+            System.out.println(result.status + " " + result.job.name + " exit=" + result.exitCode
+                    + " instructions=" + result.retiredInstructions + (result.message != null ? " (" + result.message + ")" : ""));
+        }
+        System.out.println(passed + "/" + results.size() + " passed in " + millis + "ms");
+        System.exit(passed == results.size() ? 0 : 1);
+    }
+}
@@ -1,7 +1,8 @@
 package de.fs_cse.core;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class ALU {
 
@@ -9,46 +10,147 @@ public class ALU {
 
     public long[] registers;
 
+    //with lazyFlags the fields are only up to date after materializeFlags, read them through zf() ... sf() instead
     public boolean zf;
     public boolean cf;
     public boolean of;
     public boolean sf;
 
+    public boolean lazyFlags;
+
+    //the last add or sub and its operands while its flags have not been computed yet
+    private static final int FLAGS_VALID = 0;
+    private static final int FLAGS_ADD = 1;
+    private static final int FLAGS_SUB = 2;
+    private int pendingFlags;
+    private long flagX;
+    private long flagY;
+    private long flagZ;
+    //flags set by later operations on their own, they keep their value when the pending ones are computed
+    private static final int ZF_SET = 1;
+    private static final int CF_SET = 2;
+    private static final int OF_SET = 4;
+    private int setFlags;
+
     public ArrayList<ObserverALU> observers;
+    private final ArrayList<BitSet> observedRegisters = new ArrayList<>(); //per observer, null for all registers
+    private final boolean[] watched; //some observer wants this register, spares unwatched accesses the dispatch
 
     public ALU(){
         registers = new long[NUM_REGS];
         observers = new ArrayList<>();
+        watched = new boolean[NUM_REGS];
     }
 
     public void reset(){
-        registers = new long[NUM_REGS];
+        Arrays.fill(registers, 0);
         zf = cf = of = sf = false;
+        pendingFlags = FLAGS_VALID;
         for(ObserverALU observer : observers) observer.reset();
     }
 
+    public void restore(long[] registers, boolean zf, boolean cf, boolean of, boolean sf){
+        System.arraycopy(registers, 0, this.registers, 0, NUM_REGS);
+        this.zf = zf;
+        this.cf = cf;
+        this.of = of;
+        this.sf = sf;
+        pendingFlags = FLAGS_VALID;
+    }
+
     public void addObserver(ObserverALU observer){
         observers.add(observer);
+        observedRegisters.add(null);
+        Arrays.fill(watched, true);
+    }
+
+    //the observer only hears about the registers set in the mask
+    public void addObserver(ObserverALU observer, BitSet registerMask){
+        BitSet mask = (BitSet) registerMask.clone();
+        observers.add(observer);
+        observedRegisters.add(mask);
+        for(int regId = mask.nextSetBit(0); regId >= 0 && regId < NUM_REGS; regId = mask.nextSetBit(regId + 1)) watched[regId] = true;
+    }
+
+    public void removeAllObservers(){
+        observers.clear();
+        observedRegisters.clear();
+        Arrays.fill(watched, false);
     }
 
     public long read(int regId){
         long value = registers[regId];
-        for(ObserverALU observer : observers) observer.onRead(regId, value);
+        if(watched[regId]){
+            for(int i = 0; i < observers.size(); i++){
+                BitSet mask = observedRegisters.get(i);
+                if(mask == null || mask.get(regId)) observers.get(i).onRead(regId, value);
+            }
+        }
         return value;
     }
 
     public void write(int regId, long value){
         if(regId == 0x00) value = 0;
-        for(ObserverALU observer : observers) observer.onWrite(regId, value);
+        if(watched[regId]){
+            for(int i = 0; i < observers.size(); i++){
+                BitSet mask = observedRegisters.get(i);
+                if(mask == null || mask.get(regId)) observers.get(i).onWrite(regId, value);
+            }
+        }
         registers[regId] = value;
     }
 
+    // FLAG SECTION
+
+    //zf and sf only depend on the result, a pending operation does not have to be computed for them
+    public boolean zf(){
+        if(pendingFlags == FLAGS_VALID || (setFlags & ZF_SET) != 0) return zf;
+        return flagZ == 0;
+    }
+
+    public boolean cf(){
+        materializeFlags();
+        return cf;
+    }
+
+    public boolean of(){
+        materializeFlags();
+        return of;
+    }
+
+    public boolean sf(){
+        if(pendingFlags == FLAGS_VALID) return sf;
+        return flagZ < 0;
+    }
+
+    public void materializeFlags(){
+        if(pendingFlags == FLAGS_VALID) return;
+        boolean z = zf, c = cf, o = of;
+        if(pendingFlags == FLAGS_ADD) setAddFlags(flagX, flagY, flagZ);
+        else setSubFlags(flagX, flagY, flagZ);
+        if((setFlags & ZF_SET) != 0) zf = z;
+        if((setFlags & CF_SET) != 0) cf = c;
+        if((setFlags & OF_SET) != 0) of = o;
+        pendingFlags = FLAGS_VALID;
+    }
+
+    private void deferFlags(int operation, long x, long y, long z){
+        pendingFlags = operation;
+        flagX = x;
+        flagY = y;
+        flagZ = z;
+        setFlags = 0;
+    }
+
     // OPERATION SECTION
     // prefix r denotes operation with register value, prefixes u (s) denote operations with immediate unsigned (signed) value
 
+    //operations that only set some of the flags mark them in setFlags, the others may still be pending
+
     private void load(int regId, long value){
         write(regId, value);
         zf = value == 0;
+        setFlags |= ZF_SET;
     }
 
     public void uLoad(OperationField opfield){
@@ -70,6 +172,7 @@ public class ALU {
 
         if(Long.compareUnsigned(shiftBy, 64) < 0){
             cf = (value >>> (64-shiftBy) & 0x01) == 1; //unsigned shift
+            setFlags |= CF_SET;
         }
     }
 
@@ -111,6 +214,11 @@ public class ALU {
         long z = x + y;
         write(regId, z);
 
+        if(lazyFlags) deferFlags(FLAGS_ADD, x, y, z);
+        else setAddFlags(x, y, z);
+    }
+
+    private void setAddFlags(long x, long y, long z){
         zf = z == 0;
         cf = Long.compareUnsigned(z, x) < 0 || Long.compareUnsigned(z, y) < 0;
         of = (x < 0 && y < 0 && z > 0) || (x > 0 && y > 0 && z < 0);
@@ -129,6 +237,11 @@ public class ALU {
         long z = y - x;
         write(regId, z);
 
+        if(lazyFlags) deferFlags(FLAGS_SUB, x, y, z);
+        else setSubFlags(x, y, z);
+    }
+
+    private void setSubFlags(long x, long y, long z){
         zf = z == 0;
         cf = Long.compareUnsigned(y, z) < 0;
         of = (x >= 0 && y < 0 && z >= 0) || (x < 0 && y >= 0 && z < 0);
@@ -148,6 +261,7 @@ public class ALU {
         write(opfield.rZ, z);
 
         zf = z == 0;
+        setFlags |= ZF_SET;
     }
 
     public void or(OperationField opfield){
@@ -155,6 +269,7 @@ public class ALU {
         write(opfield.rZ, z);
 
         zf = z == 0;
+        setFlags |= ZF_SET;
     }
 
     public void not(OperationField opfield){
@@ -162,6 +277,7 @@ public class ALU {
         write(opfield.rY, y);
 
         zf = y == 0;
+        setFlags |= ZF_SET;
     }
 
     public void rMul(OperationField opfield){
@@ -197,39 +313,58 @@ public class ALU {
     }
 
     private void mul128(long a, long b, int regId){
-        BigInteger result = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b));
-        long resultLow = result.longValue();
-        long resultHigh = result.shiftRight(64).longValue();
+        long resultLow = a * b;
+        long resultHigh = Math.multiplyHigh(a, b); //signed, like the product of two sign extended 128 bit values
         write(regId, resultLow);
-        if(resultHigh != 0) cf = of = true;
+        if(resultHigh != 0){
+            cf = of = true;
+            setFlags |= CF_SET | OF_SET;
+        }
     }
 
     private void div128(long b, long aLow, long aHigh, int regId){
-        BigInteger a = new BigInteger(uLongToBytes(aHigh));
-        //System.out.println(divisor);
-        a = a.shiftLeft(64);
-        a = a.add(new BigInteger(uLongToBytes(aLow)));
-        BigInteger[] divAndRem = a.divideAndRemainder(new BigInteger(uLongToBytes(b)));
-        long resultLow = divAndRem[0].longValue();
-        long resultHigh = divAndRem[0].shiftRight(64).longValue();
-        long remainder = divAndRem[1].longValue();
+        //high word first, its remainder is smaller than b so the low word quotient fits into 64 bits
+        long resultHigh = Long.divideUnsigned(aHigh, b);
+        long resultLow = divideUnsigned128(Long.remainderUnsigned(aHigh, b), aLow, b);
+        long remainder = aLow - resultLow * b; //exact, the true remainder is below 2^64
         write(regId, resultLow);
         write(regId+1, resultHigh);
         write(regId+2, remainder);
     }
 
-    private static byte[] uLongToBytes(long data) {
-        return new byte[]{
-                0x00,
-                (byte) ((data >> 56) & 0xFF),
-                (byte) ((data >> 48) & 0xFF),
-                (byte) ((data >> 40) & 0xFF),
-                (byte) ((data >> 32) & 0xFF),
-                (byte) ((data >> 24) & 0xFF),
-                (byte) ((data >> 16) & 0xFF),
-                (byte) ((data >> 8) & 0xFF),
-                (byte) ((data) & 0xFF),
-        };
+    //unsigned (high:low) / divisor for high < divisor, Knuth's algorithm D with two 32 bit digits (Hacker's Delight, divlu)
+    private static long divideUnsigned128(long high, long low, long divisor){
+        final long base = 1L << 32;
+        final long mask = base - 1;
+
+        //normalize so that the divisor's most significant bit is set
+        int shift = Long.numberOfLeadingZeros(divisor);
+        divisor <<= shift;
+        long divisorHigh = divisor >>> 32;
+        long divisorLow = divisor & mask;
+        long numerator32 = (high << shift) | (shift == 0 ? 0 : low >>> (64 - shift));
+        long numerator10 = low << shift;
+        long numerator1 = numerator10 >>> 32;
+        long numerator0 = numerator10 & mask;
+
+        long quotient1 = Long.divideUnsigned(numerator32, divisorHigh);
+        long rest = numerator32 - quotient1 * divisorHigh;
+        while(quotient1 >= base || Long.compareUnsigned(quotient1 * divisorLow, (rest << 32) | numerator1) > 0){
+            quotient1--;
+            rest += divisorHigh;
+            if(rest >= base) break;
+        }
+
+        long numerator21 = (numerator32 << 32) + numerator1 - quotient1 * divisor;
+        long quotient0 = Long.divideUnsigned(numerator21, divisorHigh);
+        rest = numerator21 - quotient0 * divisorHigh;
+        while(quotient0 >= base || Long.compareUnsigned(quotient0 * divisorLow, (rest << 32) | numerator0) > 0){
+            quotient0--;
+            rest += divisorHigh;
+            if(rest >= base) break;
+        }
+
+        return (quotient1 << 32) | quotient0;
     }
 
 }
@@ -0,0 +1,208 @@
+package de.fs_cse.core;
+
+import java.util.ArrayList;
+
+//delivers the events of a ULM to regular observers on a thread of its own
+//the machine's thread only appends to a single producer ring, the delivery thread hands out everything queued so far as one batch
+//when the ring is full, DROP loses the event and BLOCK makes the machine wait, halts and resets are never dropped
+public class AsyncObserverDispatcher implements ObserverULM, ObserverALU, ObserverMemory, AutoCloseable {
+
+    public enum OverflowPolicy {
+        DROP,
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private static final byte NEXT_INSTRUCTION = 0, HALT = 1, BLOCKED = 2, RESET = 3;
+    private static final byte REGISTER_READ = 4, REGISTER_WRITE = 5, MEMORY_READ = 6, MEMORY_WRITE = 7, LOAD_PROGRAM = 8;
+
+    private final OverflowPolicy policy;
+    private final EventRing ring;
+
+    //one event per slot, the meaning of the fields depends on the kind
+    private final byte[] kinds;
+    private final int[] ints;
+    private final long[] addresses;
+    private final long[] values;
+    private final Object[] objects;
+
+    //written by the delivery thread only once it is started, so adding observers later is not allowed
+    private final ArrayList<ObserverULM> ulmObservers = new ArrayList<>();
+    private final ArrayList<ObserverALU> aluObservers = new ArrayList<>();
+    private final ArrayList<ObserverMemory> memoryObservers = new ArrayList<>();
+
+    private volatile long dropped;
+    private byte lastKind = -1;
+
+    public AsyncObserverDispatcher(OverflowPolicy policy) {
+        this(policy, DEFAULT_CAPACITY);
+    }
+
+    //capacity is the number of events the ring holds, a power of two
+    public AsyncObserverDispatcher(OverflowPolicy policy, int capacity) {
+        this.policy = policy;
+        ring = new EventRing(capacity, "Dispatcher", "ulm-observer-dispatch", this::deliver);
+        kinds = new byte[capacity];
+        ints = new int[capacity];
+        addresses = new long[capacity];
+        values = new long[capacity];
+        objects = new Object[capacity];
+    }
+
+    //the observers receive their callbacks on the delivery thread, add them before attach
+    public void addObserver(ObserverULM observer) {
+        checkNotStarted();
+        ulmObservers.add(observer);
+    }
+
+    public void addObserverALU(ObserverALU observer) {
+        checkNotStarted();
+        aluObservers.add(observer);
+    }
+
+    public void addObserverMemory(ObserverMemory observer) {
+        checkNotStarted();
+        memoryObservers.add(observer);
+    }
+
+    private void checkNotStarted() {
+        if (ring.isStarted()) throw new IllegalStateException("Dispatcher is already attached");
+    }
+
+    //starts the delivery thread and registers for the event kinds that have observers
+    public void attach(ULM ulm) {
+        checkNotStarted();
+        ring.start();
+        if (!ulmObservers.isEmpty()) ulm.addObserver(this);
+        if (!aluObservers.isEmpty()) ulm.addObserverALU(this);
+        if (!memoryObservers.isEmpty()) ulm.addObserverMemory(this);
+    }
+
+    //events lost to a full ring under DROP
+    public long getDroppedEvents() {
+        return dropped;
+    }
+
+    private void publish(byte kind, int intValue, long address, long value, Object object, boolean droppable) {
+        long at = ring.claim(droppable && policy == OverflowPolicy.DROP);
+        if (at < 0) {
+            dropped++;
+            return;
+        }
+        int slot = ring.slot(at);
+        kinds[slot] = kind;
+        ints[slot] = intValue;
+        addresses[slot] = address;
+        values[slot] = value;
+        objects[slot] = object;
+        lastKind = kind;
+        ring.publish();
+    }
+
+    //delivery thread, everything queued so far is one batch
+    private long deliver(long start, long end) {
+        for (long at = start; at < end; at++) {
+            int slot = ring.slot(at);
+            try {
+                deliver(slot);
+            } catch (RuntimeException e) {
+                //a failing observer must not stop the others
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+            objects[slot] = null;
+        }
+        return end;
+    }
+
+    private void deliver(int slot) {
+        switch (kinds[slot]) {
+            case NEXT_INSTRUCTION:
+                for (ObserverULM observer : ulmObservers) observer.nextInstruction(ints[slot], (String) objects[slot]);
+                break;
+            case HALT:
+                for (ObserverULM observer : ulmObservers) observer.onHalt(ints[slot], (String) objects[slot]);
+                break;
+            case BLOCKED:
+                for (ObserverULM observer : ulmObservers) observer.onBlock();
+                break;
+            case RESET:
+                for (ObserverULM observer : ulmObservers) observer.reset();
+                for (ObserverALU observer : aluObservers) observer.reset();
+                for (ObserverMemory observer : memoryObservers) observer.reset();
+                break;
+            case REGISTER_READ:
+                for (ObserverALU observer : aluObservers) observer.onRead(ints[slot], values[slot]);
+                break;
+            case REGISTER_WRITE:
+                for (ObserverALU observer : aluObservers) observer.onWrite(ints[slot], values[slot]);
+                break;
+            case MEMORY_READ:
+                for (ObserverMemory observer : memoryObservers) observer.onRead(addresses[slot], ints[slot], values[slot]);
+                break;
+            case MEMORY_WRITE:
+                for (ObserverMemory observer : memoryObservers) observer.onWrite(addresses[slot], ints[slot], values[slot]);
+                break;
+            default:
+                for (ObserverMemory observer : memoryObservers) observer.onLoadProgram((int[]) objects[slot]);
+        }
+    }
+
+    //waits until every event published so far has been delivered
+    public void flush() {
+        ring.flush();
+    }
+
+    //delivers what is left and stops the delivery thread, the dispatcher stays attached but must not get further events
+    @Override
+    public void close() {
+        ring.close();
+    }
+
+    @Override
+    public void nextInstruction(int opfield, String disassembly) {
+        publish(NEXT_INSTRUCTION, opfield, 0, 0, disassembly, true);
+    }
+
+    @Override
+    public void onHalt(int exitCode, String errorMessage) {
+        publish(HALT, exitCode, 0, 0, errorMessage, false);
+    }
+
+    @Override
+    public void onBlock() {
+        publish(BLOCKED, 0, 0, 0, null, false);
+    }
+
+    @Override
+    public void onRead(int regId, long value) {
+        publish(REGISTER_READ, regId, 0, value, null, true);
+    }
+
+    @Override
+    public void onWrite(int regId, long value) {
+        publish(REGISTER_WRITE, regId, 0, value, null, true);
+    }
+
+    @Override
+    public void onRead(long address, int numBytes, long value) {
+        publish(MEMORY_READ, numBytes, address, value, null, true);
+    }
+
+    @Override
+    public void onWrite(long address, int numBytes, long value) {
+        publish(MEMORY_WRITE, numBytes, address, value, null, true);
+    }
+
+    @Override
+    public void onLoadProgram(int[] program) {
+        publish(LOAD_PROGRAM, 0, 0, 0, program, false);
+    }
+
+    //the ULM resets each observer kind it registered the dispatcher for, the observers are reset once
+    @Override
+    public void reset() {
+        if (lastKind == RESET) return;
+        publish(RESET, 0, 0, 0, null, false);
+    }
+}
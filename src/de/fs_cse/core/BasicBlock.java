@@ -0,0 +1,46 @@
+package de.fs_cse.core;
+
+public class BasicBlock {
+
+    public static final int MAX_LENGTH = 64;
+
+    public final long entry;
+    public final DecodedInstruction[] body;  //straight-line instructions, none of them jumps, halts or does io
+    public final boolean[] stores;           //body instructions that write memory and may therefore modify code
+    public final boolean terminated;         //the block is followed by a jump, halt, getc or putc
+    public final DecodedInstruction terminator; //that instruction, null if the block just ends
+    public final int generation;             //code generation of the memory the block was translated from
+    public final int passLength;             //instructions a compiled pass retires, a terminator other than a jump is left out
+
+    public BasicBlock next;                  //successor of the last execution, spares the lookup in loops
+
+    public int entries;                      //counts executions up to the compile threshold
+    public CompiledBlock compiled;           //JVM translation of a hot block, null while interpreted
+
+    public BasicBlock(long entry, DecodedInstruction[] body, DecodedInstruction terminator, int generation){
+        this.entry = entry;
+        this.body = body;
+        this.terminator = terminator;
+        this.terminated = terminator != null;
+        this.generation = generation;
+        passLength = body.length + (terminated && isJump(terminator.opcode) ? 1 : 0);
+        stores = new boolean[body.length];
+        for(int i = 0; i < body.length; i++) stores[i] = isStore(body[i].opcode);
+    }
+
+    //instructions that may change the control flow, stop the machine or call the io device end a block
+    //io code may attach observers, which the next dispatch has to see before anything else runs headless
+    public static boolean isTerminator(int opcode){
+        return isJump(opcode) || opcode == 0x01 || opcode == 0x09 || opcode == 0x60 || opcode == 0x61 || opcode == 0x69;
+    }
+
+    public static boolean isJump(int opcode){
+        return opcode >= 0x40 && opcode <= 0x4B;
+    }
+
+    //movb/movw/movl/movq register to memory, the undefined opcodes in these rows never make it into a block
+    public static boolean isStore(int opcode){
+        int row = opcode & 0xF0;
+        return row == 0x20 || row == 0x90 || row == 0xB0 || row == 0xD0;
+    }
+}
@@ -0,0 +1,17 @@
+package de.fs_cse.core;
+
+//one program run against one input, the output is only checked if an expected output is given
+public final class BatchJob {
+
+    public final String name;
+    public final MemoryImage image;
+    public final String input;
+    public final String expectedOutput; //null accepts any output
+
+    public BatchJob(String name, MemoryImage image, String input, String expectedOutput) {
+        this.name = name;
+        this.image = image;
+        this.input = input;
+        this.expectedOutput = expectedOutput;
+    }
+}
@@ -0,0 +1,27 @@
+package de.fs_cse.core;
+
+public final class BatchResult {
+
+    public enum Status {
+        PASS,    //halted and printed the expected output
+        FAIL,    //halted with different output or waited for more input than it was given
+        TIMEOUT, //still running when the instruction limit was reached
+        ERROR    //illegal instruction or a memory fault
+    }
+
+    public final BatchJob job;
+    public final Status status;
+    public final int exitCode;
+    public final String output;
+    public final long retiredInstructions;
+    public final String message; //what went wrong, null on PASS
+
+    public BatchResult(BatchJob job, Status status, int exitCode, String output, long retiredInstructions, String message) {
+        this.job = job;
+        this.status = status;
+        this.exitCode = exitCode;
+        this.output = output;
+        this.retiredInstructions = retiredInstructions;
+        this.message = message;
+    }
+}
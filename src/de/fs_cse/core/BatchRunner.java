@@ -0,0 +1,113 @@
+package de.fs_cse.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+//runs grading jobs in parallel, every job gets a ULM of its own and shares only the read-only program image
+public class BatchRunner {
+
+    private final ForkJoinPool pool;
+    private final ULMPool machines;
+    private final long maxInstructions;
+
+    public BatchRunner(long maxInstructions) {
+        this(Runtime.getRuntime().availableProcessors(), maxInstructions);
+    }
+
+    public BatchRunner(int threads, long maxInstructions) {
+        pool = new ForkJoinPool(threads);
+        machines = new ULMPool(threads);
+        this.maxInstructions = maxInstructions;
+    }
+
+    //results come back in the order of the jobs
+    public List<BatchResult> run(List<BatchJob> jobs) throws InterruptedException {
+        List<Callable<BatchResult>> tasks = new ArrayList<>();
+        for (BatchJob job : jobs) tasks.add(() -> run(job));
+        List<BatchResult> results = new ArrayList<>();
+        for (Future<BatchResult> result : pool.invokeAll(tasks)) {
+            try {
+                results.add(result.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch job failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    public BatchResult run(BatchJob job) {
+        BufferedIO io = new BufferedIO();
+        ULM ulm = machines.acquire(io);
+        try {
+            io.offer(job.input);
+            ulm.setEngine(Engine.TIERED); //compiled loops honour the instruction limit
+            ulm.loadImage(job.image);
+            return run(job, ulm, io);
+        } finally {
+            machines.release(ulm);
+        }
+    }
+
+    private BatchResult run(BatchJob job, ULM ulm, BufferedIO io) {
+        RunResult result = ulm.run(maxInstructions);
+        String output = io.getOutput();
+        long retired = result.retiredInstructions;
+        switch (result.status) {
+            case ERROR:
+                return new BatchResult(job, BatchResult.Status.ERROR, result.exitCode, output, retired, result.message);
+            case BLOCKED:
+                return new BatchResult(job, BatchResult.Status.FAIL, 0, output, retired, "waiting for input");
+            case BUDGET_EXHAUSTED:
+                return new BatchResult(job, BatchResult.Status.TIMEOUT, 0, output, retired, "instruction limit reached");
+            default:
+                if (job.expectedOutput != null && !job.expectedOutput.equals(output))
+                    return new BatchResult(job, BatchResult.Status.FAIL, result.exitCode, output, retired, "unexpected output");
+                return new BatchResult(job, BatchResult.Status.PASS, result.exitCode, output, retired, null);
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    //every name.img in directory is a program, its test cases are name.<case>.in with the expected output in name.<case>.out
+    //a program without any .in file runs once with empty input and is not checked
+    public static List<BatchJob> loadDirectory(Path directory) throws IOException {
+        List<BatchJob> jobs = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            if (!fileName.endsWith(".img")) continue;
+            String program = fileName.substring(0, fileName.length() - 4);
+            MemoryImage image = MemoryImage.of(file, VirtualMemory.DEFAULT_PAGE_SIZE);
+
+            boolean hasCases = false;
+            for (Path in : files) {
+                String inName = in.getFileName().toString();
+                if (!inName.endsWith(".in")) continue;
+                String name = inName.substring(0, inName.length() - 3);
+                int dot = name.lastIndexOf('.'); //<program>.<case>, the case itself has no dot
+                if (dot < 0 || !name.substring(0, dot).equals(program)) continue;
+                Path out = directory.resolve(name + ".out");
+                String expected = Files.exists(out) ? Files.readString(out, StandardCharsets.ISO_8859_1) : null;
+                jobs.add(new BatchJob(name, image, Files.readString(in, StandardCharsets.ISO_8859_1), expected));
+                hasCases = true;
+            }
+            if (!hasCases) jobs.add(new BatchJob(program, image, "", null));
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,975 @@
+package de.fs_cse.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+//translates hot basic blocks into JVM bytecode and loads them as hidden classes
+//registers and flags live in locals while the block runs, a jump back to the block's entry becomes a JVM loop
+//class files are emitted in version 49 so that the verifier infers types and no stack map frames are needed
+public class BlockCompiler {
+
+    public static final int DEFAULT_THRESHOLD = 1000; //block entries before a block gets compiled, see ULM.setCompileThreshold
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String BASE = "de/fs_cse/core/CompiledBlock";
+    private static final String CPU_CLASS = "de/fs_cse/core/CPU";
+    private static final String ALU_CLASS = "de/fs_cse/core/ALU";
+    private static final String ULM_CLASS = "de/fs_cse/core/ULM";
+    private static final String MEMORY_CLASS = "de/fs_cse/core/VirtualMemory";
+    private static final String DECODED_CLASS = "de/fs_cse/core/DecodedInstruction";
+    private static final String EXECUTE_DESCRIPTOR = "(Lde/fs_cse/core/CPU;Lde/fs_cse/core/ULM;)J";
+
+    private static final int MAX_CODE_LENGTH = 32767; //keeps every branch offset within 16 bits
+
+    //fixed locals of execute, the cached registers follow behind them
+    private static final int THIS = 0, CPU = 1, ULM = 2, ALU = 3, MEMORY = 4, REGS = 5, PC = 6;
+    private static final int ZF = 7, CF = 8, OF = 9, SF = 10;
+    private static final int TX = 11, TY = 13, TZ = 15, TA = 17, EXCEPTION = 19, RETIRED = 20, FIRST_REGISTER = 21;
+
+    //JVM opcodes
+    private static final int ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0A, BIPUSH = 0x10, SIPUSH = 0x11;
+    private static final int LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2A, LALOAD = 0x2F, AALOAD = 0x32, ISTORE = 0x36, LSTORE = 0x37, ASTORE = 0x3A, LASTORE = 0x50;
+    private static final int POP2 = 0x58, DUP = 0x59, IADD = 0x60, ISUB = 0x64, LADD = 0x61, LSUB = 0x65, LMUL = 0x69;
+    private static final int LSHL = 0x79, LSHR = 0x7B, LUSHR = 0x7D, IAND = 0x7E, LAND = 0x7F;
+    private static final int IOR = 0x80, LOR = 0x81, IXOR = 0x82, LXOR = 0x83, I2L = 0x85, L2I = 0x88, LCMP = 0x94;
+    private static final int IFEQ = 0x99, IFLT = 0x9B, IFGE = 0x9C, IF_ICMPEQ = 0x9F, GOTO = 0xA7;
+    private static final int LRETURN = 0xAD, RETURN = 0xB1, GETFIELD = 0xB4, PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, ATHROW = 0xBF, WIDE = 0xC4;
+
+    private final BasicBlock block;
+    private final DecodedInstruction[] instructions;
+
+    private final int[] registerLocals = new int[de.fs_cse.core.ALU.NUM_REGS];
+    private final ArrayList<Integer> cachedRegisters = new ArrayList<>();
+    private int maxLocals = FIRST_REGISTER;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[1024];
+    private int length;
+
+    private BlockCompiler(BasicBlock block){
+        this.block = block;
+        instructions = new DecodedInstruction[block.body.length + (block.terminated ? 1 : 0)];
+        System.arraycopy(block.body, 0, instructions, 0, block.body.length);
+        if(block.terminated) instructions[block.body.length] = block.terminator;
+    }
+
+    //returns null if the block cannot be compiled, it then keeps running in the block engine
+    public static CompiledBlock compile(BasicBlock block){
+        BlockCompiler compiler = new BlockCompiler(block);
+        try {
+            byte[] bytes = compiler.generate();
+            if(bytes == null) return null;
+            Class<?> compiledClass = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+            CompiledBlock compiled = (CompiledBlock) compiledClass.getDeclaredConstructor().newInstance();
+            compiled.instructions = compiler.instructions;
+            return compiled;
+        } catch (IOException | ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // CLASS FILE SECTION
+
+    private byte[] generate() throws IOException {
+        int thisClass = classConstant(BASE + "$Jit");
+        int superClass = classConstant(BASE);
+        int codeName = utf8("Code");
+        int initName = utf8("<init>");
+        int initDescriptor = utf8("()V");
+        int superInit = methodConstant(BASE, "<init>", "()V");
+        int executeName = utf8("execute");
+        int executeDescriptor = utf8(EXECUTE_DESCRIPTOR);
+
+        byte[] initCode = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit, (byte) RETURN};
+
+        ExceptionRange range = emitExecute();
+        if(length > MAX_CODE_LENGTH) return null;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(poolCount);
+        pool.flush();
+        poolBytes.writeTo(out);
+        out.writeShort(0x0030); //final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); //interfaces
+        out.writeShort(0); //fields
+        out.writeShort(2); //methods
+
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initDescriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + initCode.length);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(initCode.length);
+        out.write(initCode);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0x0001);
+        out.writeShort(executeName);
+        out.writeShort(executeDescriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + length + 8);
+        out.writeShort(16);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(1);
+        out.writeShort(range.start);
+        out.writeShort(range.end);
+        out.writeShort(range.handler);
+        out.writeShort(0); //catch any
+
+        out.writeShort(0); //method attributes
+        out.writeShort(0); //class attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = constants.get("U" + value);
+        if(index != null) return index;
+        pool.writeByte(1);
+        pool.writeUTF(value);
+        constants.put("U" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int classConstant(String name) throws IOException {
+        Integer index = constants.get("C" + name);
+        if(index != null) return index;
+        int nameIndex = utf8(name);
+        pool.writeByte(7);
+        pool.writeShort(nameIndex);
+        constants.put("C" + name, poolCount);
+        return poolCount++;
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if(index != null) return index;
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.writeByte(12);
+        pool.writeShort(nameIndex);
+        pool.writeShort(descriptorIndex);
+        int nameAndType = poolCount++;
+        pool.writeByte(tag);
+        pool.writeShort(ownerIndex);
+        pool.writeShort(nameAndType);
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int fieldConstant(String owner, String name, String descriptor) throws IOException {
+        return memberConstant(9, owner, name, descriptor);
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) throws IOException {
+        return memberConstant(10, owner, name, descriptor);
+    }
+
+    private int intConstant(int value) throws IOException {
+        Integer index = constants.get("I" + value);
+        if(index != null) return index;
+        pool.writeByte(3);
+        pool.writeInt(value);
+        constants.put("I" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int longConstant(long value) throws IOException {
+        Integer index = constants.get("J" + value);
+        if(index != null) return index;
+        pool.writeByte(5);
+        pool.writeLong(value);
+        constants.put("J" + value, poolCount);
+        int ret = poolCount;
+        poolCount += 2; //long constants take two slots
+        return ret;
+    }
+
+    // TRANSLATION SECTION
+
+    private static class ExceptionRange {
+        int start, end, handler;
+    }
+
+    private ExceptionRange emitExecute() throws IOException {
+        for(DecodedInstruction decoded : instructions){
+            if(isCompiled(decoded.opcode)){
+                cacheRegister(decoded.opfield.rX);
+                cacheRegister(decoded.opfield.rY);
+                cacheRegister(decoded.opfield.rZ);
+            }
+        }
+
+        aload(CPU);
+        getfield(CPU_CLASS, "alu", "L" + ALU_CLASS + ";");
+        astore(ALU);
+        aload(CPU);
+        getfield(CPU_CLASS, "memory", "L" + MEMORY_CLASS + ";");
+        astore(MEMORY);
+        aload(ALU);
+        getfield(ALU_CLASS, "registers", "[J");
+        astore(REGS);
+        loadState();
+        iconst(0);
+        istore(PC);
+
+        ExceptionRange range = new ExceptionRange();
+        Label loop = new Label();
+        Label exit = new Label();
+        range.start = length;
+        bind(loop);
+
+        for(int i = 0; i < block.body.length; i++){
+            emitInstruction(i, exit);
+        }
+        long next = block.entry + 4L * block.body.length;
+        if(block.terminated) emitTerminator(block.terminator, next, loop, exit);
+        else exitTo(next, block.body.length, exit);
+
+        range.end = length;
+        bind(exit);
+        storeState();
+        iload(RETIRED);
+        retire();
+        lload(TA);
+        op(LRETURN);
+
+        //restore the state and the ip and ir of the faulting instruction for the interpreter and rethrow
+        //the faulting instruction counts as retired, like in ULM.stepHeadless
+        range.handler = length;
+        astore(EXCEPTION);
+        storeState();
+        iload(PC);
+        iconst(1);
+        op(IADD);
+        retire();
+        aload(CPU);
+        iload(PC);
+        op(I2L);
+        iconst(2);
+        op(LSHL);
+        lconst(block.entry);
+        op(LADD);
+        putfield(CPU_CLASS, "ip", "J");
+        aload(CPU);
+        aload(THIS);
+        getfield(BASE, "instructions", "[L" + DECODED_CLASS + ";");
+        iload(PC);
+        op(AALOAD);
+        getfield(DECODED_CLASS, "ir", "I");
+        putfield(CPU_CLASS, "ir", "I");
+        aload(EXCEPTION);
+        op(ATHROW);
+        return range;
+    }
+
+    private void cacheRegister(int regId){
+        if(registerLocals[regId] != 0) return;
+        registerLocals[regId] = maxLocals;
+        maxLocals += 2;
+        cachedRegisters.add(regId);
+    }
+
+    //registers and flags from the ALU into locals, pending lazy flags are computed first
+    private void loadState() throws IOException {
+        for(int regId : cachedRegisters){
+            aload(REGS);
+            iconst(regId);
+            op(LALOAD);
+            lstore(registerLocals[regId]);
+        }
+        aload(ALU);
+        invokevirtual(ALU_CLASS, "materializeFlags", "()V");
+        loadFlag("zf", ZF);
+        loadFlag("cf", CF);
+        loadFlag("of", OF);
+        loadFlag("sf", SF);
+    }
+
+    //locals back into the ALU
+    private void storeState() throws IOException {
+        for(int regId : cachedRegisters){
+            aload(REGS);
+            iconst(regId);
+            lload(registerLocals[regId]);
+            op(LASTORE);
+        }
+        storeFlag("zf", ZF);
+        storeFlag("cf", CF);
+        storeFlag("of", OF);
+        storeFlag("sf", SF);
+    }
+
+    private void loadFlag(String name, int local) throws IOException {
+        aload(ALU);
+        getfield(ALU_CLASS, name, "Z");
+        istore(local);
+    }
+
+    private void storeFlag(String name, int local) throws IOException {
+        aload(ALU);
+        iload(local);
+        putfield(ALU_CLASS, name, "Z");
+    }
+
+    private static boolean isCompiled(int opcode){
+        switch(opcode){
+            case 0x33: case 0x35: case 0x3B: case 0x3D: //division
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void emitInstruction(int index, Label exit) throws IOException {
+        DecodedInstruction decoded = instructions[index];
+        OperationField opfield = decoded.opfield;
+        int opcode = decoded.opcode;
+        int row = opcode & 0xF0;
+
+        if(!isCompiled(opcode)){
+            storeState();
+            setPC(index);
+            aload(THIS);
+            aload(ULM);
+            iconst(index);
+            invokevirtual(BASE, "interpret", "(Lde/fs_cse/core/ULM;I)V");
+            loadState();
+            return;
+        }
+
+        if(row == 0x20 || row == 0x90 || row == 0xB0 || row == 0xD0){
+            emitStore(index, opfield, opcode, exit);
+            return;
+        }
+        if(row == 0x10 || row == 0x80 || row == 0xA0 || row == 0xC0){
+            emitFetch(index, opfield, opcode);
+            return;
+        }
+
+        switch(opcode){
+            case 0x30: //addq %x, %y, %z
+                readReg(opfield.rX, TX);
+                readReg(opfield.rY, TY);
+                emitAdd(opfield.rZ);
+                break;
+            case 0x38: //addq $x, %y, %z
+                constant(opfield.uX, TX);
+                readReg(opfield.rY, TY);
+                emitAdd(opfield.rZ);
+                break;
+            case 0x31: //subq %x, %y, %z
+                readReg(opfield.rX, TX);
+                readReg(opfield.rY, TY);
+                emitSub(opfield.rZ);
+                break;
+            case 0x39: //subq $x, %y, %z
+                constant(opfield.uX, TX);
+                readReg(opfield.rY, TY);
+                emitSub(opfield.rZ);
+                break;
+            case 0x34: //imulq %x, %y, %z
+                readReg(opfield.rX, TX);
+                readReg(opfield.rY, TY);
+                emitMul(opfield.rZ);
+                break;
+            case 0x3C: //imulq $x, %y, %z
+                constant(opfield.sX, TX);
+                readReg(opfield.rY, TY);
+                emitMul(opfield.rZ);
+                break;
+            case 0x50: //orq
+                lload(registerLocals[opfield.rX]);
+                lload(registerLocals[opfield.rY]);
+                op(LOR);
+                storeResult(opfield.rZ);
+                setZF();
+                break;
+            case 0x51: //andq
+                lload(registerLocals[opfield.rX]);
+                lload(registerLocals[opfield.rY]);
+                op(LAND);
+                storeResult(opfield.rZ);
+                setZF();
+                break;
+            case 0x5E: //notq
+                lload(registerLocals[opfield.rX]);
+                lconst(-1);
+                op(LXOR);
+                storeResult(opfield.rY);
+                setZF();
+                break;
+            case 0x52: //shlq %x, %y, %z
+                readReg(opfield.rX, TX);
+                readReg(opfield.rY, TY);
+                emitShiftLeft(opfield.rZ);
+                break;
+            case 0x5A: //shlq $x, %y, %z
+                constant(opfield.uX, TX);
+                readReg(opfield.rY, TY);
+                emitShiftLeft(opfield.rZ);
+                break;
+            case 0x53: //shrq %x, %y, %z
+            case 0x54: //sarq %x, %y, %z
+                lload(registerLocals[opfield.rY]);
+                lload(registerLocals[opfield.rX]);
+                op(L2I);
+                op(opcode == 0x53 ? LUSHR : LSHR);
+                writeReg(opfield.rZ);
+                break;
+            case 0x5B: //shrq $x, %y, %z
+            case 0x5C: //sarq $x, %y, %z
+                lload(registerLocals[opfield.rY]);
+                iconst((int) opfield.uX);
+                op(opcode == 0x5B ? LUSHR : LSHR);
+                writeReg(opfield.rZ);
+                break;
+            case 0x56: //ldzwq
+            case 0x57: //ldswq
+                long value = opcode == 0x56 ? opfield.uXY : opfield.sXY;
+                lconst(value);
+                writeReg(opfield.rZ);
+                iconst(value == 0 ? 1 : 0);
+                istore(ZF);
+                break;
+            case 0x5D: //shldwq
+                lload(registerLocals[opfield.rZ]);
+                iconst(16);
+                op(LSHL);
+                lconst(opfield.uXY);
+                op(LADD);
+                storeResult(opfield.rZ);
+                setZF();
+                break;
+            case 0xFF: //nop
+                break;
+            default:
+                throw new IllegalStateException("no translation for opcode " + Integer.toHexString(opcode));
+        }
+    }
+
+    // mirrors ALU.add: z = x + y
+    private void emitAdd(int regId) throws IOException {
+        lload(TX);
+        lload(TY);
+        op(LADD);
+        storeResult(regId);
+        setZF();
+        //carry: z < x unsigned
+        lload(TZ);
+        lconst(Long.MIN_VALUE);
+        op(LXOR);
+        lload(TX);
+        lconst(Long.MIN_VALUE);
+        op(LXOR);
+        op(LCMP);
+        bool(IFLT);
+        istore(CF);
+        //overflow: x and y agree in sign, z differs from both and is not zero
+        lload(TX);
+        lload(TZ);
+        op(LXOR);
+        lload(TY);
+        lload(TZ);
+        op(LXOR);
+        op(LAND);
+        lconst(0);
+        op(LCMP);
+        bool(IFLT);
+        iload(ZF);
+        iconst(1);
+        op(IXOR);
+        op(IAND);
+        istore(OF);
+        setSF();
+    }
+
+    // mirrors ALU.sub: z = y - x
+    private void emitSub(int regId) throws IOException {
+        lload(TY);
+        lload(TX);
+        op(LSUB);
+        storeResult(regId);
+        setZF();
+        //carry: y < z unsigned
+        lload(TY);
+        lconst(Long.MIN_VALUE);
+        op(LXOR);
+        lload(TZ);
+        lconst(Long.MIN_VALUE);
+        op(LXOR);
+        op(LCMP);
+        bool(IFLT);
+        istore(CF);
+        //overflow: x and y differ in sign and z differs from y
+        lload(TY);
+        lload(TX);
+        op(LXOR);
+        lload(TY);
+        lload(TZ);
+        op(LXOR);
+        op(LAND);
+        lconst(0);
+        op(LCMP);
+        bool(IFLT);
+        istore(OF);
+        setSF();
+    }
+
+    // mirrors ALU.mul128
+    private void emitMul(int regId) throws IOException {
+        lload(TX);
+        lload(TY);
+        op(LMUL);
+        writeReg(regId);
+        Label done = new Label();
+        lload(TX);
+        lload(TY);
+        invokestatic("java/lang/Math", "multiplyHigh", "(JJ)J");
+        lconst(0);
+        op(LCMP);
+        branch(IFEQ, done);
+        iconst(1);
+        op(DUP);
+        istore(CF);
+        istore(OF);
+        bind(done);
+    }
+
+    // mirrors ALU.arithmeticShiftLeft: shift TX, value TY
+    private void emitShiftLeft(int regId) throws IOException {
+        lload(TY);
+        lload(TX);
+        op(L2I);
+        op(LSHL);
+        writeReg(regId);
+        Label done = new Label();
+        lload(TX);
+        lconst(Long.MIN_VALUE);
+        op(LXOR);
+        lconst(64 ^ Long.MIN_VALUE);
+        op(LCMP);
+        branch(IFGE, done);
+        lload(TY);
+        iconst(64);
+        lload(TX);
+        op(L2I);
+        op(ISUB);
+        op(LUSHR);
+        lconst(1);
+        op(LAND);
+        op(L2I);
+        istore(CF);
+        bind(done);
+    }
+
+    // mirrors CPU.rFetch and CPU.sFetch
+    private void emitFetch(int index, OperationField opfield, int opcode) throws IOException {
+        int size = 8 >> (opcode & 0x3);
+        boolean signed = (opcode & 0x4) != 0;
+        setPC(index);
+        aload(MEMORY);
+        if(opcode >= 0x18 && opcode <= 0x1F){
+            lconst(opfield.sX);
+            lload(registerLocals[opfield.rY]);
+            op(LADD);
+        } else {
+            lload(registerLocals[opfield.rX]);
+            lload(registerLocals[opfield.rY]);
+            iconst(8 * scale(opcode));
+            op(LSHL);
+            op(LADD);
+        }
+        iconst(size);
+        invokevirtual(MEMORY_CLASS, "read", "(JI)J");
+        if(signed){
+            iconst(size);
+            invokestatic(CPU_CLASS, "signExtend", "(JI)J");
+        }
+        writeReg(opfield.rZ);
+    }
+
+    // mirrors CPU.rStore and CPU.sStore, leaves the block if the store hit code
+    private void emitStore(int index, OperationField opfield, int opcode, Label exit) throws IOException {
+        int size = 8 >> (opcode & 0x3);
+        setPC(index);
+        aload(MEMORY);
+        if(opcode >= 0x28 && opcode <= 0x2B){
+            lconst(opfield.sY);
+            lload(registerLocals[opfield.rZ]);
+            op(LADD);
+        } else {
+            lload(registerLocals[opfield.rY]);
+            lload(registerLocals[opfield.rZ]);
+            iconst(8 * scale(opcode));
+            op(LSHL);
+            op(LADD);
+        }
+        iconst(size);
+        lload(registerLocals[opfield.rX]);
+        invokevirtual(MEMORY_CLASS, "write", "(JIJ)V");
+
+        Label unchanged = new Label();
+        aload(MEMORY);
+        getfield(MEMORY_CLASS, "codeGeneration", "I");
+        iconst(block.generation);
+        branch(IF_ICMPEQ, unchanged);
+        exitTo(block.entry + 4L * (index + 1), index + 1, exit);
+        bind(unchanged);
+    }
+
+    private static int scale(int opcode){
+        switch(opcode & 0xF0){
+            case 0x80: case 0x90: return 2;
+            case 0xA0: case 0xB0: return 4;
+            case 0xC0: case 0xD0: return 8;
+            default: return 1;
+        }
+    }
+
+    private void emitTerminator(DecodedInstruction terminator, long address, Label loop, Label exit) throws IOException {
+        OperationField opfield = terminator.opfield;
+        long target = address + (opfield.sXYZ << 2);
+        long next = address + 4;
+        int retired = block.body.length + 1;
+        switch(terminator.opcode){
+            case 0x40: //jmp %x, %y: link first, then jump, just like CPU.absJmp
+                lconst(next);
+                writeReg(opfield.rY);
+                lload(registerLocals[opfield.rX]);
+                lstore(TA);
+                iconst(retired);
+                istore(RETIRED);
+                branch(GOTO, exit);
+                return;
+            case 0x41:
+                jumpTo(target, loop, exit);
+                return;
+            case 0x42: case 0x43: case 0x44: case 0x45: case 0x46:
+            case 0x47: case 0x48: case 0x49: case 0x4A: case 0x4B:
+                Label notTaken = new Label();
+                emitCondition(terminator.opcode);
+                branch(IFEQ, notTaken);
+                jumpTo(target, loop, exit);
+                bind(notTaken);
+                exitTo(next, retired, exit);
+                return;
+            default: //halt, getc and putc are left to the interpreter
+                exitTo(address, block.body.length, exit);
+        }
+    }
+
+    // mirrors the conditions of CPU.jz ... CPU.ja, leaves 1 on the stack if the jump is taken
+    private void emitCondition(int opcode) throws IOException {
+        switch(opcode){
+            case 0x42: //jz
+                iload(ZF);
+                break;
+            case 0x43: //jnz
+                iload(ZF);
+                not();
+                break;
+            case 0x44: //jl
+                iload(SF);
+                iload(OF);
+                op(IXOR);
+                break;
+            case 0x45: //jge
+                iload(SF);
+                iload(OF);
+                op(IXOR);
+                not();
+                break;
+            case 0x46: //jle
+                iload(ZF);
+                iload(SF);
+                iload(OF);
+                op(IXOR);
+                op(IOR);
+                break;
+            case 0x47: //jg
+                iload(ZF);
+                not();
+                iload(SF);
+                iload(OF);
+                op(IXOR);
+                not();
+                op(IAND);
+                break;
+            case 0x48: //jb
+                iload(CF);
+                break;
+            case 0x49: //jae
+                iload(CF);
+                not();
+                break;
+            case 0x4A: //jbe
+                iload(CF);
+                iload(ZF);
+                op(IOR);
+                break;
+            default: //ja
+                iload(CF);
+                iload(ZF);
+                op(IOR);
+                not();
+        }
+    }
+
+    //a jump back to the entry counts the pass and loops while the run's budget lasts
+    private void jumpTo(long target, Label loop, Label exit) throws IOException {
+        if(target != block.entry){
+            exitTo(target, block.passLength, exit);
+            return;
+        }
+        iconst(block.passLength);
+        retire();
+        aload(ULM);
+        getfield(ULM_CLASS, "retired", "J");
+        aload(ULM);
+        getfield(ULM_CLASS, "retireLimit", "J");
+        op(LCMP);
+        branch(IFLT, loop);
+        exitTo(target, 0, exit); //this pass is counted already
+    }
+
+    //leaves the block at ip, retired is the number of instructions of the current pass that ran
+    private void exitTo(long ip, int retired, Label exit) throws IOException {
+        lconst(ip);
+        lstore(TA);
+        iconst(retired);
+        istore(RETIRED);
+        branch(GOTO, exit);
+    }
+
+    //adds the int on the stack to ulm.retired
+    private void retire() throws IOException {
+        op(I2L);
+        aload(ULM);
+        getfield(ULM_CLASS, "retired", "J");
+        op(LADD);
+        lstore(TX);
+        aload(ULM);
+        lload(TX);
+        putfield(ULM_CLASS, "retired", "J");
+    }
+
+    private void setPC(int index) throws IOException {
+        iconst(index);
+        istore(PC);
+    }
+
+    // BYTECODE SECTION
+
+    private static class Label {
+        int position = -1;
+        ArrayList<Integer> fixups = new ArrayList<>();
+    }
+
+    private void readReg(int regId, int local){
+        lload(registerLocals[regId]);
+        lstore(local);
+    }
+
+    private void constant(long value, int local) throws IOException {
+        lconst(value);
+        lstore(local);
+    }
+
+    //pops a value into a register, register 0 stays zero like in ALU.write
+    private void writeReg(int regId){
+        if(regId == 0){
+            op(POP2);
+            op(LCONST_0);
+        }
+        lstore(registerLocals[regId]);
+    }
+
+    //pops a value into a register and keeps it in TZ for the flags
+    private void storeResult(int regId){
+        lstore(TZ);
+        lload(TZ);
+        writeReg(regId);
+    }
+
+    private void setZF() throws IOException {
+        lload(TZ);
+        lconst(0);
+        op(LCMP);
+        bool(IFEQ);
+        istore(ZF);
+    }
+
+    private void setSF() throws IOException {
+        lload(TZ);
+        lconst(0);
+        op(LCMP);
+        bool(IFLT);
+        istore(SF);
+    }
+
+    //turns the int on the stack into 1 if the condition holds and 0 otherwise
+    private void bool(int condition){
+        Label isTrue = new Label();
+        Label done = new Label();
+        branch(condition, isTrue);
+        op(ICONST_0);
+        branch(GOTO, done);
+        bind(isTrue);
+        op(ICONST_0 + 1);
+        bind(done);
+    }
+
+    private void not(){
+        op(ICONST_0 + 1);
+        op(IXOR);
+    }
+
+    private void branch(int opcode, Label label){
+        int at = length;
+        op(opcode);
+        if(label.position >= 0){
+            u2(label.position - at);
+        } else {
+            label.fixups.add(at);
+            u2(0);
+        }
+    }
+
+    private void bind(Label label){
+        label.position = length;
+        for(int at : label.fixups){
+            int offset = label.position - at;
+            code[at + 1] = (byte) (offset >> 8);
+            code[at + 2] = (byte) offset;
+        }
+    }
+
+    private void iconst(int value) throws IOException {
+        if(value >= -1 && value <= 5){
+            op(ICONST_0 + value);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+            op(BIPUSH);
+            u1(value);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            op(SIPUSH);
+            u2(value);
+        } else {
+            op(LDC_W);
+            u2(intConstant(value));
+        }
+    }
+
+    private void lconst(long value) throws IOException {
+        if(value == 0){
+            op(LCONST_0);
+        } else if(value == 1){
+            op(LCONST_1);
+        } else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+            iconst((int) value);
+            op(I2L);
+        } else {
+            op(LDC2_W);
+            u2(longConstant(value));
+        }
+    }
+
+    private void iload(int local){
+        local(ILOAD, local);
+    }
+
+    private void istore(int local){
+        local(ISTORE, local);
+    }
+
+    private void lload(int local){
+        local(LLOAD, local);
+    }
+
+    private void lstore(int local){
+        local(LSTORE, local);
+    }
+
+    private void aload(int local){
+        local(ALOAD, local);
+    }
+
+    private void astore(int local){
+        local(ASTORE, local);
+    }
+
+    private void local(int opcode, int local){
+        if(local < 256){
+            op(opcode);
+            u1(local);
+        } else {
+            op(WIDE);
+            op(opcode);
+            u2(local);
+        }
+    }
+
+    private void getfield(String owner, String name, String descriptor) throws IOException {
+        op(GETFIELD);
+        u2(fieldConstant(owner, name, descriptor));
+    }
+
+    private void putfield(String owner, String name, String descriptor) throws IOException {
+        op(PUTFIELD);
+        u2(fieldConstant(owner, name, descriptor));
+    }
+
+    private void invokevirtual(String owner, String name, String descriptor) throws IOException {
+        op(INVOKEVIRTUAL);
+        u2(methodConstant(owner, name, descriptor));
+    }
+
+    private void invokestatic(String owner, String name, String descriptor) throws IOException {
+        op(INVOKESTATIC);
+        u2(methodConstant(owner, name, descriptor));
+    }
+
+    private void op(int opcode){
+        u1(opcode);
+    }
+
+    private void u1(int value){
+        if(length == code.length){
+            byte[] grown = new byte[code.length * 2];
+            System.arraycopy(code, 0, grown, 0, length);
+            code = grown;
+        }
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value){
+        u1(value >> 8);
+        u1(value);
+    }
+}
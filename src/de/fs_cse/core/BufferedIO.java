@@ -0,0 +1,49 @@
+package de.fs_cse.core;
+
+import java.util.ArrayDeque;
+
+//io device fed from another thread: input is appended with offer, output collects everything the program printed
+public class BufferedIO implements IODevice {
+
+    private final ArrayDeque<Character> input = new ArrayDeque<>();
+    private final StringBuilder output = new StringBuilder();
+    private Runnable onInput; //told whenever new input arrives, e.g. to wake a parked session
+
+    public void offer(CharSequence chars) {
+        Runnable listener;
+        synchronized (this) {
+            for (int i = 0; i < chars.length(); i++) input.add(chars.charAt(i));
+            listener = onInput;
+        }
+        if (listener != null && chars.length() > 0) listener.run(); //outside the lock, the listener may hand work to other threads
+    }
+
+    public synchronized void setInputListener(Runnable onInput) {
+        this.onInput = onInput;
+    }
+
+    public synchronized String getOutput() {
+        return output.toString();
+    }
+
+    @Override
+    public synchronized void putc(char c) {
+        output.append(c);
+    }
+
+    @Override
+    public synchronized char getc() {
+        return input.remove();
+    }
+
+    @Override
+    public synchronized boolean hasNextChar() {
+        return !input.isEmpty();
+    }
+
+    @Override
+    public synchronized void reset() {
+        input.clear();
+        output.setLength(0);
+    }
+}
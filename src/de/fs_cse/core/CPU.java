@@ -9,8 +9,14 @@ public class CPU {
     public long ip;
     public boolean jumped;
 
+    Profiler profiler; //counts the data accesses below while set, instruction fetches are not included
+
     public CPU(){
-        memory = new VirtualMemory();
+        this(new VirtualMemory());
+    }
+
+    public CPU(VirtualMemory memory){
+        this.memory = memory;
         alu = new ALU();
     }
 
@@ -43,6 +49,7 @@ public class CPU {
 
     public void rFetch(OperationField opfield, int size, int scale, boolean signed){
         long address = alu.read(opfield.rX) + (alu.read(opfield.rY) << (8*scale));
+        if(profiler != null) profiler.countRead(address);
         long z = memory.read(address, size);
         if(signed) z = signExtend(z, size);
         alu.write(opfield.rZ, z);
@@ -50,6 +57,7 @@ public class CPU {
 
     public void sFetch(OperationField opfield, int size, boolean signed){
         long address = opfield.sX + alu.read(opfield.rY);
+        if(profiler != null) profiler.countRead(address);
         long z = memory.read(address, size);
         if(signed) z = signExtend(z, size);
         alu.write(opfield.rZ, z);
@@ -57,11 +65,13 @@ public class CPU {
 
     public void rStore(OperationField opfield, int size, int scale){
         long address = alu.read(opfield.rY) + (alu.read(opfield.rZ) << (8*scale));
+        if(profiler != null) profiler.countWrite(address);
         memory.write(address, size, alu.read(opfield.rX));
     }
 
     public void sStore(OperationField opfield, int size){
         long address = opfield.sY + alu.read(opfield.rZ);
+        if(profiler != null) profiler.countWrite(address);
         memory.write(address, size, alu.read(opfield.rX));
     }
 
@@ -79,42 +89,42 @@ public class CPU {
     }
 
     public void ja(OperationField opfield){
-        if(!alu.cf && !alu.zf) relJmp(opfield);
+        if(!alu.cf() && !alu.zf()) relJmp(opfield);
     }
 
     public void jbe(OperationField opfield){
-        if(alu.cf || alu.zf) relJmp(opfield);
+        if(alu.cf() || alu.zf()) relJmp(opfield);
     }
 
     public void jae(OperationField opfield){
-        if(!alu.cf) relJmp(opfield);
+        if(!alu.cf()) relJmp(opfield);
     }
 
     public void jb(OperationField opfield){
-        if(alu.cf) relJmp(opfield);
+        if(alu.cf()) relJmp(opfield);
     }
 
     public void jg(OperationField opfield){
-        if(alu.zf && (alu.sf == alu.of)) relJmp(opfield);
+        if(!alu.zf() && (alu.sf() == alu.of())) relJmp(opfield);
     }
 
     public void jle(OperationField opfield){
-        if(alu.zf || (alu.sf != alu.of)) relJmp(opfield);
+        if(alu.zf() || (alu.sf() != alu.of())) relJmp(opfield);
     }
 
     public void jge(OperationField opfield){
-        if(alu.sf == alu.of) relJmp(opfield);
+        if(alu.sf() == alu.of()) relJmp(opfield);
     }
 
     public void jl(OperationField opfield){
-        if(alu.sf != alu.of) relJmp(opfield);
+        if(alu.sf() != alu.of()) relJmp(opfield);
     }
 
     public void jz(OperationField opfield){
-        if(alu.zf) relJmp(opfield);
+        if(alu.zf()) relJmp(opfield);
     }
 
     public void jnz(OperationField opfield){
-        if(!alu.zf) relJmp(opfield);
+        if(!alu.zf()) relJmp(opfield);
     }
 }
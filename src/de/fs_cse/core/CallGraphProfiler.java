@@ -0,0 +1,167 @@
+package de.fs_cse.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+//attributes retired instructions to the functions of the guest program, see ULM.setCallGraphProfiler
+//jmp %x, %y with a link register %y != %0 is a call of the function at %x, the ULM calling convention
+//jmp %x, %0 to the return address of a frame on the shadow stack returns from that frame and every frame above it
+//each distinct call path is a node of a tree, an instruction only increments the counter of the current node
+public class CallGraphProfiler {
+
+    private static final int NONE = -1;
+
+    //the call path tree, node 0 is the function the program started in
+    private long[] entries = new long[256];   //function entry address
+    private long[] counts = new long[256];    //instructions retired with exactly this call path
+    private int[] parents = new int[256];
+    private int[] firstChildren = new int[256];
+    private int[] nextSiblings = new int[256];
+    private int nodeCount;
+
+    //the shadow stack, frames are tree nodes and the address their call returns to
+    private int[] frames = new int[64];
+    private long[] returnAddresses = new long[64];
+    private int depth;
+
+    void countInstruction(long ip, DecodedInstruction decoded, long nextIp) {
+        if (nodeCount == 0) push(addNode(NONE, ip), 0);
+        counts[frames[depth - 1]]++;
+        if (decoded.opcode != 0x40) return;
+        if (decoded.opfield.rY != 0) {
+            push(child(frames[depth - 1], nextIp), ip + 4);
+        } else {
+            //a return may skip frames, e.g. when a callee jumps straight back to its caller's caller
+            for (int frame = depth - 1; frame > 0; frame--) {
+                if (returnAddresses[frame] == nextIp) {
+                    depth = frame;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void push(int node, long returnAddress) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+            returnAddresses = Arrays.copyOf(returnAddresses, depth * 2);
+        }
+        frames[depth] = node;
+        returnAddresses[depth] = returnAddress;
+        depth++;
+    }
+
+    private int child(int parent, long entry) {
+        for (int node = firstChildren[parent]; node != NONE; node = nextSiblings[node]) {
+            if (entries[node] == entry) return node;
+        }
+        return addNode(parent, entry);
+    }
+
+    private int addNode(int parent, long entry) {
+        if (nodeCount == entries.length) {
+            int capacity = nodeCount * 2;
+            entries = Arrays.copyOf(entries, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        int node = nodeCount++;
+        entries[node] = entry;
+        counts[node] = 0;
+        parents[node] = parent;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = parent == NONE ? NONE : firstChildren[parent];
+        if (parent != NONE) firstChildren[parent] = node;
+        return node;
+    }
+
+    public void reset() {
+        nodeCount = 0;
+        depth = 0;
+    }
+
+    //instructions retired in the function itself
+    public long getExclusiveCount(long entry) {
+        long sum = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (entries[node] == entry) sum += counts[node];
+        }
+        return sum;
+    }
+
+    //instructions retired in the function and everything it called, recursive calls are counted once
+    public long getInclusiveCount(long entry) {
+        return inclusiveCounts().getOrDefault(entry, 0L);
+    }
+
+    //sums every node's subtree into the topmost node of each function on its path
+    private HashMap<Long, Long> inclusiveCounts() {
+        long[] totals = new long[nodeCount];
+        for (int node = nodeCount - 1; node >= 0; node--) { //children are always created after their parent
+            totals[node] += counts[node];
+            if (parents[node] != NONE) totals[parents[node]] += totals[node];
+        }
+        HashMap<Long, Long> inclusive = new HashMap<>();
+        HashMap<Long, Integer> onPath = new HashMap<>();
+        int[] stack = new int[2 * nodeCount + 2];
+        int top = 0;
+        if (nodeCount > 0) stack[top++] = 0;
+        while (top > 0) {
+            int item = stack[--top];
+            if (item < 0) { //leaving ~item
+                onPath.merge(entries[~item], -1, Integer::sum);
+                continue;
+            }
+            long entry = entries[item];
+            if (onPath.getOrDefault(entry, 0) == 0) inclusive.merge(entry, totals[item], Long::sum);
+            onPath.merge(entry, 1, Integer::sum);
+            stack[top++] = ~item;
+            for (int child = firstChildren[item]; child != NONE; child = nextSiblings[child]) {
+                stack[top++] = child;
+            }
+        }
+        return inclusive;
+    }
+
+    //one line per call path: the function entries from the outermost call, separated by ';', and the instruction count
+    //this is the folded stack format that flamegraph.pl, speedscope and similar tools read
+    public void writeFolded(Appendable out) throws IOException {
+        StringBuilder path = new StringBuilder();
+        long[] chain = new long[16];
+        for (int node = 0; node < nodeCount; node++) {
+            if (counts[node] == 0) continue;
+            int length = 0;
+            for (int at = node; at != NONE; at = parents[at]) {
+                if (length == chain.length) chain = Arrays.copyOf(chain, length * 2);
+                chain[length++] = entries[at];
+            }
+            path.setLength(0);
+            for (int i = length - 1; i >= 0; i--) {
+                path.append(name(chain[i]));
+                if (i > 0) path.append(';');
+            }
+            out.append(path).append(' ').append(Long.toString(counts[node])).append('\n');
+        }
+    }
+
+    //functions by inclusive count, the top ones with their exclusive count
+    public String report(int top) {
+        HashMap<Long, Long> inclusive = inclusiveCounts();
+        long total = nodeCount == 0 ? 0 : inclusive.get(entries[0]);
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%12s %12s  %s%n", "inclusive", "exclusive", "function"));
+        inclusive.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .limit(top)
+                .forEach(e -> out.append(String.format("%12d %12d  %s  %.2f%%%n", e.getValue(), getExclusiveCount(e.getKey()),
+                        name(e.getKey()), total == 0 ? 0 : 100.0 * e.getValue() / total)));
+        return out.toString();
+    }
+
+    private static String name(long entry) {
+        return "0x" + Long.toHexString(entry);
+    }
+}
@@ -0,0 +1,16 @@
+package de.fs_cse.core;
+
+//base class of the hidden classes generated by BlockCompiler
+public abstract class CompiledBlock {
+
+    protected DecodedInstruction[] instructions; //the compiled block's body and terminator
+
+    //runs the block until control leaves it and returns the next instruction pointer
+    public abstract long execute(CPU cpu, ULM ulm);
+
+    //instructions without a compiled form run through their regular handler
+    protected void interpret(ULM ulm, int index){
+        DecodedInstruction decoded = instructions[index];
+        decoded.instruction.execute(ulm, decoded.opfield);
+    }
+}
@@ -0,0 +1,16 @@
+package de.fs_cse.core;
+
+public class DecodedInstruction {
+
+    public final int ir;                  //raw instruction word
+    public final int opcode;
+    public final Instruction instruction; //null for illegal instructions
+    public final OperationField opfield;  //null for illegal instructions
+
+    public DecodedInstruction(int ir, Instruction instruction){
+        this.ir = ir;
+        this.opcode = ir >>> 24;
+        this.instruction = instruction;
+        this.opfield = instruction != null ? new OperationField(ir & 0xFFFFFF) : null;
+    }
+}
@@ -0,0 +1,8 @@
+package de.fs_cse.core;
+
+//execution strategy of ULM.runHeadless, observed machines always fall back to the interpreter
+public enum Engine {
+    INTERPRETER,    //fetch, decode and dispatch one instruction at a time
+    BASIC_BLOCK,    //execute cached straight-line runs of predecoded instructions
+    TIERED          //basic blocks, hot blocks get compiled to JVM bytecode
+}
@@ -0,0 +1,120 @@
+package de.fs_cse.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+//single producer, single consumer ring of slots, the owner keeps what a slot holds in buffers or arrays of its own
+//the machine's thread claims a slot, fills it and publishes it, a consumer thread drains everything published so far in batches
+final class EventRing {
+
+    interface Consumer {
+        //handles the events from start up to end (exclusive) and returns where the next batch starts
+        long drain(long start, long end);
+    }
+
+    private static final VarHandle HEAD;
+
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(EventRing.class, "head", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int mask;
+    private final String owner; //for the error on a closed ring
+    private final Consumer consumer;
+    private final Thread thread;
+
+    //events published by the producer and drained by the consumer, both only grow
+    private long head;
+    private volatile long tail;
+    private volatile boolean closed;
+
+    //capacity is the number of events the ring holds, a power of two
+    EventRing(int capacity, String owner, String threadName, Consumer consumer) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two");
+        mask = capacity - 1;
+        this.owner = owner;
+        this.consumer = consumer;
+        thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean isStarted() {
+        return thread.getState() != Thread.State.NEW;
+    }
+
+    int slot(long at) {
+        return (int) (at & mask);
+    }
+
+    //the next event to publish, on a full ring -1 if it may be dropped, otherwise it waits for the consumer
+    long claim(boolean droppable) {
+        long at = head;
+        if (at - tail > mask) {
+            if (droppable) return -1;
+            LockSupport.unpark(thread);
+            while (at - tail > mask) {
+                if (closed) throw new IllegalStateException(owner + " is closed");
+                Thread.onSpinWait();
+            }
+        }
+        return at;
+    }
+
+    //hands the claimed event to the consumer
+    void publish() {
+        HEAD.setRelease(this, head + 1);
+    }
+
+    //events published so far, readable from any thread
+    long getPublished() {
+        return (long) HEAD.getOpaque(this);
+    }
+
+    //consumer thread, sleeps briefly whenever the ring runs empty
+    private void run() {
+        while (true) {
+            long end = (long) HEAD.getAcquire(this);
+            long start = tail;
+            if (start == end) {
+                if (closed && end == (long) HEAD.getAcquire(this)) return;
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            tail = consumer.drain(start, end);
+        }
+    }
+
+    //waits until every event published so far has been drained
+    void flush() {
+        long end = head;
+        LockSupport.unpark(thread);
+        while (tail < end && thread.isAlive()) {
+            Thread.onSpinWait();
+        }
+    }
+
+    //drains what is left and stops the consumer thread
+    void close() {
+        if (closed) return;
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
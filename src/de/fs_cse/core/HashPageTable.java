@@ -0,0 +1,121 @@
+package de.fs_cse.core;
+
+import java.util.Arrays;
+
+//open addressing map from page keys to pages, no boxing of the long keys
+public class HashPageTable implements PageTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+    private VirtualMemory.MemoryPage[] pages; //null marks a free slot
+    private int mask;
+    private int size;
+
+    private static final int MAX_RETAINED_CAPACITY = 1 << 12; //larger tables are dropped on clear instead of wiped
+
+    public HashPageTable(){
+        keys = new long[INITIAL_CAPACITY];
+        pages = new VirtualMemory.MemoryPage[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        size = 0;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public void clear(){
+        if(pages.length > MAX_RETAINED_CAPACITY){
+            keys = new long[INITIAL_CAPACITY];
+            pages = new VirtualMemory.MemoryPage[INITIAL_CAPACITY];
+            mask = INITIAL_CAPACITY - 1;
+        } else {
+            Arrays.fill(pages, null);
+        }
+        size = 0;
+    }
+
+    @Override
+    public long[] keys(){
+        long[] ret = new long[size];
+        int n = 0;
+        for(int i = 0; i < pages.length; i++){
+            if(pages[i] != null) ret[n++] = keys[i];
+        }
+        return ret;
+    }
+
+    @Override
+    public VirtualMemory.MemoryPage get(long key){
+        for(int slot = slot(key); ; slot = (slot + 1) & mask){
+            VirtualMemory.MemoryPage page = pages[slot];
+            if(page == null || keys[slot] == key) return page;
+        }
+    }
+
+    @Override
+    public void put(long key, VirtualMemory.MemoryPage page){
+        int slot = slot(key);
+        while(pages[slot] != null && keys[slot] != key) slot = (slot + 1) & mask;
+        if(pages[slot] == null){
+            size++;
+        }
+        keys[slot] = key;
+        pages[slot] = page;
+        if(size * 2 > pages.length) grow();
+    }
+
+    //backward shift deletion keeps every probe sequence free of holes
+    @Override
+    public VirtualMemory.MemoryPage remove(long key){
+        int slot = slot(key);
+        while(pages[slot] != null && keys[slot] != key) slot = (slot + 1) & mask;
+        VirtualMemory.MemoryPage removed = pages[slot];
+        if(removed == null) return null;
+        size--;
+        for(int next = (slot + 1) & mask; pages[next] != null; next = (next + 1) & mask){
+            int home = slot(keys[next]);
+            //move the entry into the hole unless its home lies cyclically in (slot, next]
+            if(((next - home) & mask) >= ((next - slot) & mask)){
+                keys[slot] = keys[next];
+                pages[slot] = pages[next];
+                slot = next;
+            }
+        }
+        pages[slot] = null;
+        return removed;
+    }
+
+    @Override
+    public PageTable copy(){
+        HashPageTable copy = new HashPageTable();
+        copy.keys = keys.clone();
+        copy.pages = pages.clone();
+        copy.mask = mask;
+        copy.size = size;
+        return copy;
+    }
+
+    private void grow(){
+        long[] oldKeys = keys;
+        VirtualMemory.MemoryPage[] oldPages = pages;
+        keys = new long[oldKeys.length * 2];
+        pages = new VirtualMemory.MemoryPage[oldPages.length * 2];
+        mask = pages.length - 1;
+        for(int i = 0; i < oldPages.length; i++){
+            if(oldPages[i] == null) continue;
+            int slot = slot(oldKeys[i]);
+            while(pages[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            pages[slot] = oldPages[i];
+        }
+    }
+
+    private int slot(long key){
+        long hash = key * 0x9E3779B97F4A7C15L; //fibonacci hashing spreads neighbouring pages
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,18 @@
+package de.fs_cse.core;
+
+//default backend: one byte array per page, reclaimed by the garbage collector
+public class HeapMemoryBackend implements MemoryBackend {
+
+    @Override
+    public VirtualMemory.MemoryPage allocatePage(VirtualMemory memory){
+        return memory.new HeapPage();
+    }
+
+    @Override
+    public void freePage(VirtualMemory.MemoryPage page){
+    }
+
+    @Override
+    public void release(){
+    }
+}
@@ -0,0 +1,13 @@
+package de.fs_cse.core;
+
+//decides where VirtualMemory keeps the bytes of its pages
+public interface MemoryBackend {
+
+    VirtualMemory.MemoryPage allocatePage(VirtualMemory memory);
+
+    //the page is dropped by its memory and not shared with any image, its storage may be reused
+    void freePage(VirtualMemory.MemoryPage page);
+
+    //called on reset, the memory drops all of its pages, those shared with an image have to stay readable
+    void release();
+}
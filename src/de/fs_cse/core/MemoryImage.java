@@ -0,0 +1,37 @@
+package de.fs_cse.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+//immutable contents of a VirtualMemory, its pages are shared copy on write with every memory restored from it
+public final class MemoryImage {
+
+    final PageTable pages;
+    public final int pageSize;
+
+    MemoryImage(PageTable pages, int pageSize){
+        this.pages = pages;
+        this.pageSize = pageSize;
+    }
+
+    //images meant to be shared by many machines, e.g. one per submission in a batch
+    public static MemoryImage of(int[] program){
+        return of(program, VirtualMemory.DEFAULT_PAGE_SIZE);
+    }
+
+    public static MemoryImage of(int[] program, int pageSize){
+        VirtualMemory memory = new VirtualMemory(pageSize);
+        memory.loadProgram(program);
+        return memory.snapshot();
+    }
+
+    public static MemoryImage of(Path file, int pageSize) throws IOException {
+        VirtualMemory memory = new VirtualMemory(pageSize);
+        memory.loadImage(file);
+        return memory.snapshot();
+    }
+
+    public int pageCount(){
+        return pages.size();
+    }
+}
@@ -0,0 +1,54 @@
+package de.fs_cse.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+//keeps page bytes in native memory so large sparse address spaces do not grow the java heap
+//pages are carved out of direct buffer slabs, freed pages are reused before a slab grows
+//release on reset gives every slab back, pages still shared with a MemoryImage keep their slab alive until the image is gone
+//a backend serves a single memory, its page size is taken from the first allocation
+public class OffHeapMemoryBackend implements MemoryBackend {
+
+    private static final int SLAB_SIZE = 64 * 1024; //huge pages get a slab of their own
+
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private final ArrayList<ByteBuffer> free = new ArrayList<>();
+    private int used; //pages carved out of the slabs so far
+
+    @Override
+    public VirtualMemory.MemoryPage allocatePage(VirtualMemory memory){
+        int pageSize = memory.pageSize;
+        if(!free.isEmpty()){
+            ByteBuffer page = free.remove(free.size() - 1);
+            for(int i = 0; i < pageSize; i += 8) page.putLong(i, 0L);
+            return memory.new DirectPage(page);
+        }
+        int pagesPerSlab = Math.max(1, SLAB_SIZE / pageSize);
+        int slab = used / pagesPerSlab;
+        if(slab == slabs.size()) slabs.add(ByteBuffer.allocateDirect(pagesPerSlab * pageSize));
+        int offset = (used % pagesPerSlab) * pageSize;
+        used++;
+        return memory.new DirectPage(slabs.get(slab).slice(offset, pageSize)); //slices are big endian, fresh direct memory is zeroed
+    }
+
+    @Override
+    public void freePage(VirtualMemory.MemoryPage page){
+        free.add(((VirtualMemory.DirectPage) page).buffer);
+    }
+
+    //forgets every slab, the native memory is freed once no page of an image points into it anymore
+    //nothing is carved out of a released slab again, so pages shared with images are never overwritten
+    @Override
+    public void release(){
+        slabs.clear();
+        free.clear();
+        used = 0;
+    }
+
+    //native bytes currently reserved by this backend
+    public long reservedBytes(){
+        long bytes = 0;
+        for(ByteBuffer slab : slabs) bytes += slab.capacity();
+        return bytes;
+    }
+}
@@ -0,0 +1,22 @@
+package de.fs_cse.core;
+
+//maps page keys (address >>> page shift) to the pages of a VirtualMemory
+public interface PageTable {
+
+    VirtualMemory.MemoryPage get(long key);
+
+    void put(long key, VirtualMemory.MemoryPage page);
+
+    VirtualMemory.MemoryPage remove(long key);
+
+    //snapshot of the keys of all present pages
+    long[] keys();
+
+    int size();
+
+    //removes all pages, the table may keep its storage for reuse
+    void clear();
+
+    //independent table holding the same pages
+    PageTable copy();
+}
@@ -0,0 +1,6 @@
+package de.fs_cse.core;
+
+public enum PageTableType {
+    HASH,  //open addressing hash of the page keys, compact for few scattered pages
+    RADIX  //four level tree like x86-64 paging, neighbouring pages share their upper levels
+}
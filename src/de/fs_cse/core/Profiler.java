@@ -0,0 +1,195 @@
+package de.fs_cse.core;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+//counts retired instructions per address and opcode, taken jumps per jump site and memory accesses per page
+//everything lives in primitive arrays, see ULM.setProfiler, counting costs a hash probe per instruction and access
+public class Profiler {
+
+    private final long[] opcodes = new long[256];
+    private final Table instructions = new Table(); //count = executions, other = taken jumps, word = last instruction word
+    private final Table pages = new Table();        //count = reads, other = writes
+    private long retired;
+    private int pageShift;
+
+    void setPageShift(int pageShift) {
+        this.pageShift = pageShift;
+    }
+
+    void countInstruction(long ip, int ir, boolean taken) {
+        retired++;
+        opcodes[ir >>> 24]++;
+        int slot = instructions.slot(ip);
+        instructions.counts[slot]++;
+        instructions.words[slot] = ir;
+        if (taken) instructions.others[slot]++;
+    }
+
+    void countRead(long address) {
+        pages.counts[pages.slot(address >>> pageShift)]++;
+    }
+
+    void countWrite(long address) {
+        pages.others[pages.slot(address >>> pageShift)]++;
+    }
+
+    public void reset() {
+        Arrays.fill(opcodes, 0);
+        instructions.clear();
+        pages.clear();
+        retired = 0;
+    }
+
+    public long getRetiredInstructions() {
+        return retired;
+    }
+
+    public long getOpcodeCount(int opcode) {
+        return opcodes[opcode];
+    }
+
+    public long getInstructionCount(long ip) {
+        int slot = instructions.find(ip);
+        return slot < 0 ? 0 : instructions.counts[slot];
+    }
+
+    //how often the jump at ip went elsewhere than to the next instruction
+    public long getTakenCount(long ip) {
+        int slot = instructions.find(ip);
+        return slot < 0 ? 0 : instructions.others[slot];
+    }
+
+    public long getPageReads(long address) {
+        int slot = pages.find(address >>> pageShift);
+        return slot < 0 ? 0 : pages.counts[slot];
+    }
+
+    public long getPageWrites(long address) {
+        int slot = pages.find(address >>> pageShift);
+        return slot < 0 ? 0 : pages.others[slot];
+    }
+
+    //the top hottest instructions, opcodes and pages, instructions come with their disassembly
+    public String report(int top) {
+        StringBuilder out = new StringBuilder();
+        out.append("retired instructions: ").append(retired).append('\n');
+
+        out.append("\nhot instructions:\n");
+        for (int slot : instructions.hottest(instructions.counts, top)) {
+            long count = instructions.counts[slot];
+            int word = instructions.words[slot];
+            out.append(String.format("%12d %6.2f%%  %016x  %08x  %-28s", count, percent(count), instructions.keys[slot], word, ULM.disassemble(word)));
+            int opcode = word >>> 24;
+            if (opcode >= 0x42 && opcode <= 0x4B) out.append(String.format("  taken %.1f%%", 100.0 * instructions.others[slot] / count)); //conditional jumps
+            out.append('\n');
+        }
+
+        out.append("\nhot opcodes:\n");
+        Integer[] order = new Integer[256];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(opcodes[b], opcodes[a]));
+        for (int i = 0; i < Math.min(top, order.length) && opcodes[order[i]] > 0; i++) {
+            int opcode = order[i];
+            String mnemonic = ULM.disassemble(opcode << 24).split(" ")[0];
+            out.append(String.format("%12d %6.2f%%  %02x  %s%n", opcodes[opcode], percent(opcodes[opcode]), opcode, mnemonic));
+        }
+
+        out.append("\nhot pages:\n");
+        long[] accesses = new long[pages.keys.length];
+        for (int slot = 0; slot < accesses.length; slot++) accesses[slot] = pages.counts[slot] + pages.others[slot];
+        for (int slot : pages.hottest(accesses, top)) {
+            out.append(String.format("%016x  reads %d  writes %d%n", pages.keys[slot] << pageShift, pages.counts[slot], pages.others[slot]));
+        }
+        return out.toString();
+    }
+
+    private double percent(long count) {
+        return retired == 0 ? 0 : 100.0 * count / retired;
+    }
+
+    //open addressing from long keys to two counters and an int, keys are instruction addresses or page keys, never -1
+    private static class Table {
+
+        private static final long EMPTY = -1;
+
+        long[] keys;
+        long[] counts;
+        long[] others;
+        int[] words;
+        private int size;
+
+        Table() {
+            allocate(1024);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            counts = new long[capacity];
+            others = new long[capacity];
+            words = new int[capacity];
+        }
+
+        private int home(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(keys.length)));
+        }
+
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int slot = home(key); ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return slot;
+                if (keys[slot] == EMPTY) return -1;
+            }
+        }
+
+        //the key's slot, inserted with zero counters if missing
+        int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = home(key);
+            while (keys[slot] != key) {
+                if (keys[slot] == EMPTY) {
+                    if (2 * (size + 1) > keys.length) {
+                        grow();
+                        return slot(key);
+                    }
+                    keys[slot] = key;
+                    size++;
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys, oldCounts = counts, oldOthers = others;
+            int[] oldWords = words;
+            allocate(keys.length * 2);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int slot = slot(oldKeys[i]);
+                counts[slot] = oldCounts[i];
+                others[slot] = oldOthers[i];
+                words[slot] = oldWords[i];
+            }
+        }
+
+        void clear() {
+            allocate(1024);
+            size = 0;
+        }
+
+        //slots of the largest values, largest first
+        int[] hottest(long[] values, int top) {
+            return IntStream.range(0, keys.length)
+                    .filter(slot -> keys[slot] != EMPTY)
+                    .boxed()
+                    .sorted((a, b) -> Long.compare(values[b], values[a]))
+                    .limit(top)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package de.fs_cse.core;
+
+import java.util.Arrays;
+
+//four level radix tree over the page keys, 9 bits per level like x86-64 paging
+//the tree covers the canonical keys whose upper bits are copies of bit 35, i.e. both ends of the address space
+//anything else is rare and goes to a hash table
+public class RadixPageTable implements PageTable {
+
+    private static final int LEVEL_BITS = 9;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    private static final int TREE_BITS = 4 * LEVEL_BITS;
+    private static final long TREE_MASK = (1L << TREE_BITS) - 1;
+
+    private final long upperHalf; //key >>> 35 of the keys in the upper canonical half
+    private Object[] root;
+    private final HashPageTable overflow;
+    private int size;
+
+    //last leaf found, consecutive lookups on the same leaf skip the upper levels
+    //key and leaf travel in one immutable object, tables behind a MemoryImage are read by several threads at once
+    private CachedLeaf cachedLeaf = NO_LEAF;
+
+    private static final class CachedLeaf {
+        final long key;
+        final VirtualMemory.MemoryPage[] leaf;
+
+        CachedLeaf(long key, VirtualMemory.MemoryPage[] leaf){
+            this.key = key;
+            this.leaf = leaf;
+        }
+    }
+
+    private static final CachedLeaf NO_LEAF = new CachedLeaf(-1, null);
+
+    public RadixPageTable(int pageShift){
+        int keyBits = 64 - pageShift;
+        upperHalf = -1L >>> (64 - (keyBits - (TREE_BITS - 1)));
+        root = new Object[LEVEL_SIZE];
+        overflow = new HashPageTable();
+    }
+
+    private boolean inTree(long key){
+        long high = key >>> (TREE_BITS - 1);
+        return high == 0 || high == upperHalf;
+    }
+
+    @Override
+    public VirtualMemory.MemoryPage get(long key){
+        CachedLeaf cached = cachedLeaf;
+        if((key >>> LEVEL_BITS) == cached.key) return cached.leaf[(int) key & LEVEL_MASK];
+        if(!inTree(key)) return overflow.get(key);
+        VirtualMemory.MemoryPage[] leaf = leaf(key, false);
+        if(leaf == null) return null;
+        cachedLeaf = new CachedLeaf(key >>> LEVEL_BITS, leaf);
+        return leaf[(int) key & LEVEL_MASK];
+    }
+
+    @Override
+    public void put(long key, VirtualMemory.MemoryPage page){
+        if(!inTree(key)){
+            int before = overflow.size();
+            overflow.put(key, page);
+            size += overflow.size() - before;
+            return;
+        }
+        VirtualMemory.MemoryPage[] leaf = leaf(key, true);
+        int index = (int) key & LEVEL_MASK;
+        if(leaf[index] == null) size++;
+        leaf[index] = page;
+    }
+
+    @Override
+    public VirtualMemory.MemoryPage remove(long key){
+        VirtualMemory.MemoryPage removed;
+        if(!inTree(key)){
+            removed = overflow.remove(key);
+        } else {
+            VirtualMemory.MemoryPage[] leaf = leaf(key, false);
+            if(leaf == null) return null;
+            int index = (int) key & LEVEL_MASK;
+            removed = leaf[index];
+            leaf[index] = null;
+        }
+        if(removed != null) size--;
+        return removed;
+    }
+
+    //walks the upper three levels, creating missing nodes if asked to
+    private VirtualMemory.MemoryPage[] leaf(long key, boolean create){
+        long index = key & TREE_MASK;
+        Object[] node = root;
+        for(int shift = 3 * LEVEL_BITS; shift > LEVEL_BITS; shift -= LEVEL_BITS){
+            int i = (int) (index >>> shift) & LEVEL_MASK;
+            Object[] next = (Object[]) node[i];
+            if(next == null){
+                if(!create) return null;
+                next = new Object[LEVEL_SIZE];
+                node[i] = next;
+            }
+            node = next;
+        }
+        int i = (int) (index >>> LEVEL_BITS) & LEVEL_MASK;
+        VirtualMemory.MemoryPage[] leaf = (VirtualMemory.MemoryPage[]) node[i];
+        if(leaf == null && create){
+            leaf = new VirtualMemory.MemoryPage[LEVEL_SIZE];
+            node[i] = leaf;
+        }
+        return leaf;
+    }
+
+    @Override
+    public long[] keys(){
+        long[] ret = new long[size];
+        int n = collect(root, 3, 0, ret, 0);
+        for(long key : overflow.keys()) ret[n++] = key;
+        return ret;
+    }
+
+    private int collect(Object[] node, int level, long prefix, long[] keys, int n){
+        for(int i = 0; i < LEVEL_SIZE; i++){
+            if(node[i] == null) continue;
+            long index = (prefix << LEVEL_BITS) | i;
+            if(level == 1){
+                VirtualMemory.MemoryPage[] leaf = (VirtualMemory.MemoryPage[]) node[i];
+                for(int j = 0; j < LEVEL_SIZE; j++){
+                    if(leaf[j] == null) continue;
+                    long key = (index << LEVEL_BITS) | j;
+                    if((key >>> (TREE_BITS - 1)) != 0) key |= upperHalf << (TREE_BITS - 1); //upper canonical half
+                    keys[n++] = key;
+                }
+            } else {
+                n = collect((Object[]) node[i], level - 1, index, keys, n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public void clear(){
+        root = new Object[LEVEL_SIZE];
+        overflow.clear();
+        size = 0;
+        cachedLeaf = NO_LEAF;
+    }
+
+    @Override
+    public PageTable copy(){
+        RadixPageTable copy = new RadixPageTable(upperHalf);
+        copy.root = copyNode(root, 3);
+        for(long key : overflow.keys()) copy.overflow.put(key, overflow.get(key));
+        copy.size = size;
+        return copy;
+    }
+
+    private RadixPageTable(long upperHalf){
+        this.upperHalf = upperHalf;
+        overflow = new HashPageTable();
+    }
+
+    private static Object[] copyNode(Object[] node, int level){
+        if(level == 1){
+            Object[] copy = new Object[LEVEL_SIZE];
+            for(int i = 0; i < LEVEL_SIZE; i++){
+                if(node[i] != null) copy[i] = ((VirtualMemory.MemoryPage[]) node[i]).clone();
+            }
+            return copy;
+        }
+        Object[] copy = Arrays.copyOf(node, LEVEL_SIZE);
+        for(int i = 0; i < LEVEL_SIZE; i++){
+            if(node[i] != null) copy[i] = copyNode((Object[]) node[i], level - 1);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,29 @@
+package de.fs_cse.core;
+
+//what a bounded ULM.run left behind
+public final class RunResult {
+
+    public enum Status {
+        HALTED,           //the program halted regularly
+        BLOCKED,          //getc found no input, run again once the io device has some
+        BUDGET_EXHAUSTED, //the instruction budget or the deadline ran out, run again to continue
+        ERROR             //illegal instruction or a memory fault, the machine is halted
+    }
+
+    public final Status status;
+    public final long retiredInstructions; //by this run, not since reset
+    public final int exitCode;
+    public final String message; //the error message, null unless ERROR
+
+    RunResult(Status status, long retiredInstructions, int exitCode, String message) {
+        this.status = status;
+        this.retiredInstructions = retiredInstructions;
+        this.exitCode = exitCode;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return status + " after " + retiredInstructions + " instructions" + (message != null ? ": " + message : "");
+    }
+}
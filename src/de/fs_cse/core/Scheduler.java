@@ -0,0 +1,94 @@
+package de.fs_cse.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//runs many ULM instances as time-sliced tasks on a small pool of platform threads
+//sessions blocked in getc on a BufferedIO are parked until it receives input, so idle sessions cost no thread
+//other io devices are asked for input every POLL_INTERVAL_MILLIS while their session is parked
+public class Scheduler {
+
+    public static final long DEFAULT_QUANTUM = 100_000;
+    public static final long POLL_INTERVAL_MILLIS = 1;
+
+    private final ExecutorService workers;
+    private final Executor poller;
+    private final long quantum;
+    private final long startTime;
+    private final AtomicLong retired = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM);
+    }
+
+    public Scheduler(int threads, long quantum) {
+        if (threads < 1 || quantum < 1) throw new IllegalArgumentException("threads and quantum must be positive");
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ulm-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller = CompletableFuture.delayedExecutor(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, workers);
+        this.quantum = quantum;
+        startTime = System.nanoTime();
+    }
+
+    //the program has to be loaded already, the ULM must not be used by anyone else until its session is done
+    public Session submit(ULM ulm) {
+        IODevice io = ulm.getIO();
+        Session session = new Session(this, ulm, io instanceof BufferedIO);
+        if (io instanceof BufferedIO) ((BufferedIO) io).setInputListener(session::wake);
+        active.incrementAndGet();
+        execute(session);
+        return session;
+    }
+
+    public long getQuantum() {
+        return quantum;
+    }
+
+    //instructions retired by all sessions so far
+    public long getRetiredInstructions() {
+        return retired.get();
+    }
+
+    public double getInstructionsPerSecond() {
+        return retired.get() * 1e9 / Math.max(1, System.nanoTime() - startTime);
+    }
+
+    //sessions that have not halted yet, parked ones included
+    public int getActiveSessions() {
+        return active.get();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    void execute(Session session) {
+        workers.execute(session);
+    }
+
+    //checks the parked session's io again after the poll interval
+    void poll(Session session) {
+        poller.execute(session::poll);
+    }
+
+    void retire(long instructions) {
+        retired.addAndGet(instructions);
+    }
+
+    void finished() {
+        active.decrementAndGet();
+    }
+}
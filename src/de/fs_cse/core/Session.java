@@ -0,0 +1,90 @@
+package de.fs_cse.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//one ULM run by a Scheduler, a turn executes at most one quantum and then queues the session again
+public class Session implements Runnable {
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int PARKED = 2; //blocked in getc, waiting for input
+    private static final int DONE = 3;
+
+    private final Scheduler scheduler;
+    private final ULM ulm;
+    private final boolean wakeable; //the io device reports new input, otherwise parked sessions are polled
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+    Session(Scheduler scheduler, ULM ulm, boolean wakeable) {
+        this.scheduler = scheduler;
+        this.ulm = ulm;
+        this.wakeable = wakeable;
+    }
+
+    public ULM getULM() {
+        return ulm;
+    }
+
+    //completes with the exit code once the program halted
+    public CompletableFuture<Integer> getExit() {
+        return exit;
+    }
+
+    public boolean isParked() {
+        return state.get() == PARKED;
+    }
+
+    @Override
+    public void run() {
+        state.set(RUNNING);
+        RunResult result;
+        try {
+            result = ulm.run(scheduler.getQuantum());
+        } catch (Error e) {
+            //the machine turns exceptions into ERROR, errors still end the session before they reach the worker
+            finish();
+            exit.completeExceptionally(e);
+            throw e;
+        }
+        scheduler.retire(result.retiredInstructions);
+        switch (result.status) {
+            case HALTED:
+                finish();
+                exit.complete(result.exitCode);
+                break;
+            case ERROR:
+                finish();
+                exit.completeExceptionally(new IllegalStateException(result.message));
+                break;
+            case BLOCKED:
+                state.set(PARKED);
+                //input may have arrived between the failed getc and parking
+                if (wakeable) {
+                    if (ulm.getIO().hasNextChar()) wake();
+                } else {
+                    poll(); //without a listener the io is asked again after a delay
+                }
+                break;
+            default:
+                state.set(QUEUED);
+                scheduler.execute(this);
+        }
+    }
+
+    void wake() {
+        if (state.compareAndSet(PARKED, QUEUED)) scheduler.execute(this);
+    }
+
+    void poll() {
+        if (state.get() != PARKED) return;
+        if (ulm.getIO().hasNextChar()) wake();
+        else scheduler.poll(this);
+    }
+
+    private void finish() {
+        state.set(DONE);
+        scheduler.finished();
+    }
+}
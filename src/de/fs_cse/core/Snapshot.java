@@ -0,0 +1,24 @@
+package de.fs_cse.core;
+
+//machine state captured by ULM.snapshot, restoring it only touches what changed since
+public final class Snapshot {
+
+    final long ip;
+    final long[] registers;
+    final boolean zf, cf, of, sf;
+    final MemoryImage memory;
+
+    Snapshot(long ip, long[] registers, boolean zf, boolean cf, boolean of, boolean sf, MemoryImage memory){
+        this.ip = ip;
+        this.registers = registers;
+        this.zf = zf;
+        this.cf = cf;
+        this.of = of;
+        this.sf = sf;
+        this.memory = memory;
+    }
+
+    public MemoryImage getMemory(){
+        return memory;
+    }
+}
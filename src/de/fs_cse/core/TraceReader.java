@@ -0,0 +1,85 @@
+package de.fs_cse.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+//reads the records of a TraceRecorder file one after another
+public class TraceReader implements AutoCloseable {
+
+    private final DataInputStream in;
+
+    //the current record, see TraceRecorder for the meaning of the fields
+    public byte kind;
+    public int size;
+    public int word;
+    public long address;
+    public long value;
+
+    public TraceReader(Path file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != TraceRecorder.MAGIC || in.readInt() != TraceRecorder.VERSION)
+                throw new IOException("Not a ULM trace: " + file);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    //moves to the next record, false at the end of the trace
+    public boolean next() throws IOException {
+        try {
+            kind = in.readByte();
+        } catch (EOFException e) {
+            return false;
+        }
+        size = in.readUnsignedByte();
+        in.readShort();
+        word = in.readInt();
+        address = in.readLong();
+        value = in.readLong();
+        return true;
+    }
+
+    //the current record as one line, instructions are disassembled and accesses indented below them
+    public String toText() {
+        switch (kind) {
+            case TraceRecorder.INSTRUCTION:
+                return String.format("%016x  %08x  %s", address, word, ULM.disassemble(word));
+            case TraceRecorder.REGISTER_READ:
+                return String.format("    %%%x -> 0x%016x", size, value);
+            case TraceRecorder.REGISTER_WRITE:
+                return String.format("    %%%x <- 0x%016x", size, value);
+            case TraceRecorder.MEMORY_READ:
+                return String.format("    [%016x]:%d -> 0x%016x", address, size, value);
+            case TraceRecorder.MEMORY_WRITE:
+                return String.format("    [%016x]:%d <- 0x%016x", address, size, value);
+            case TraceRecorder.HALT:
+                return "halt " + word;
+            case TraceRecorder.BLOCK:
+                return "blocked in getc";
+            case TraceRecorder.RESET:
+                return "reset";
+            default:
+                return "unknown record " + kind;
+        }
+    }
+
+    //writes the whole trace as text, one record per line
+    public static void toText(Path file, Appendable out) throws IOException {
+        try (TraceReader reader = new TraceReader(file)) {
+            while (reader.next()) {
+                out.append(reader.toText()).append('\n');
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
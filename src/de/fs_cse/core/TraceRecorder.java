@@ -0,0 +1,144 @@
+package de.fs_cse.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//records every instruction, register and memory access of a ULM as fixed size binary records
+//the machine's thread only fills a preallocated ring buffer, a background thread drains it into the file
+//a full buffer makes the machine wait for the writer, so the trace is always complete, see TraceReader
+//create it before loading the program, otherwise the first instruction is missing
+public class TraceRecorder implements ObserverULM, ObserverALU, ObserverMemory, AutoCloseable {
+
+    public static final int MAGIC = 0x554C4D54; //"ULMT"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CAPACITY = 1 << 16; //records in the ring buffer
+
+    //record layout: kind (1 byte), size (1), unused (2), word (4), address (8), value (8)
+    public static final int RECORD_SIZE = 24;
+    public static final byte INSTRUCTION = 1; //word = instruction, address = ip
+    public static final byte REGISTER_READ = 2; //size = register, value
+    public static final byte REGISTER_WRITE = 3;
+    public static final byte MEMORY_READ = 4; //size = bytes, address, value
+    public static final byte MEMORY_WRITE = 5;
+    public static final byte HALT = 6; //word = exit code
+    public static final byte BLOCK = 7;
+    public static final byte RESET = 8;
+
+    private final ULM ulm;
+    private final FileChannel channel;
+    private final EventRing ring;
+    private final ByteBuffer records;
+    private final ByteBuffer view; //the writer's
+    private IOException failure;
+
+    public TraceRecorder(ULM ulm, Path file) throws IOException {
+        this(ulm, file, DEFAULT_CAPACITY);
+    }
+
+    //capacity is the number of records the ring buffer holds, a power of two
+    public TraceRecorder(ULM ulm, Path file, int capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE / RECORD_SIZE) throw new IllegalArgumentException("Capacity must be a power of two");
+        this.ulm = ulm;
+        ring = new EventRing(capacity, "Trace recorder", "ulm-trace-writer", this::drain);
+        records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+        view = records.duplicate();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) channel.write(header);
+
+        ring.start();
+
+        ulm.addObserver(this);
+        ulm.addObserverALU(this);
+        ulm.addObserverMemory(this);
+    }
+
+    //records handed to the writer so far
+    public long getRecordCount() {
+        return ring.getPublished();
+    }
+
+    private void record(byte kind, int size, int word, long address, long value) {
+        long at = ring.claim(false);
+        int offset = ring.slot(at) * RECORD_SIZE;
+        records.put(offset, kind);
+        records.put(offset + 1, (byte) size);
+        records.putInt(offset + 4, word);
+        records.putLong(offset + 8, address);
+        records.putLong(offset + 16, value);
+        ring.publish();
+    }
+
+    //writer thread, up to the end of the ring, the wrapped part follows in the next batch
+    private long drain(long start, long end) {
+        int from = ring.slot(start);
+        int count = (int) Math.min(end - start, records.capacity() / RECORD_SIZE - from);
+        if (failure == null) {
+            view.limit((from + count) * RECORD_SIZE).position(from * RECORD_SIZE);
+            try {
+                while (view.hasRemaining()) channel.write(view);
+            } catch (IOException e) {
+                failure = e; //keep draining so that the machine does not wait forever, close reports it
+            }
+        }
+        return start + count;
+    }
+
+    //waits until every record is in the file and closes it
+    @Override
+    public void close() throws IOException {
+        if (ring.isClosed()) return;
+        ring.close();
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    public void nextInstruction(int opfield, String disassembly) {
+        record(INSTRUCTION, 4, opfield, ulm.getIP(), 0);
+    }
+
+    @Override
+    public void onHalt(int exitCode, String errorMessage) {
+        record(HALT, 0, exitCode, ulm.getIP(), 0);
+    }
+
+    @Override
+    public void onBlock() {
+        record(BLOCK, 0, 0, ulm.getIP(), 0);
+    }
+
+    @Override
+    public void onRead(int regId, long value) {
+        record(REGISTER_READ, regId, 0, 0, value);
+    }
+
+    @Override
+    public void onWrite(int regId, long value) {
+        record(REGISTER_WRITE, regId, 0, 0, value);
+    }
+
+    @Override
+    public void onRead(long address, int numBytes, long value) {
+        record(MEMORY_READ, numBytes, 0, address, value);
+    }
+
+    @Override
+    public void onWrite(long address, int numBytes, long value) {
+        record(MEMORY_WRITE, numBytes, 0, address, value);
+    }
+
+    @Override
+    public void onLoadProgram(int[] program) {}
+
+    //the ULM resets all three observer kinds, one record is enough
+    @Override
+    public void reset() {
+        long head = ring.getPublished();
+        if (head > 0 && records.get(ring.slot(head - 1) * RECORD_SIZE) == RESET) return;
+        record(RESET, 0, 0, 0, 0);
+    }
+}
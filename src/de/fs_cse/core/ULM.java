@@ -1,17 +1,24 @@
 package de.fs_cse.core;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 
 public class ULM {
 
-    private Instruction[] instructionSet;
-    private Disassembly[] disassemblies;
+    //the same for every machine and never modified, the handlers get their ULM as an argument
+    private static final Instruction[] INSTRUCTION_SET = initInstructionSet();
+    private static final Disassembly[] DISASSEMBLIES = initDisassemblies();
 
     private CPU cpu;
     private IODevice io;
 
     private boolean halted;
     private boolean blocked;
+    private DecodedInstruction decoded;
     private Instruction instruction;
     private int exitCode;
     private int opcode;
@@ -20,24 +27,144 @@ public class ULM {
 
     private ArrayList<ObserverULM> observers;
 
+    //direct mapped cache of disassemblies for the observers, formatting them costs far more than executing
+    private static final int DISASSEMBLY_CACHE_BITS = 10;
+    private final int[] disassembledWords = new int[1 << DISASSEMBLY_CACHE_BITS];
+    private final String[] disassembled = new String[1 << DISASSEMBLY_CACHE_BITS];
+
+    private Engine engine;
+    private int compileThreshold = BlockCompiler.DEFAULT_THRESHOLD;
+    private HashMap<Long, BasicBlock> blocks;
+    private int blocksGeneration;
+    private BasicBlock lastBlock;
+
+    private Path persistFile;
+    private Profiler profiler;
+    private CallGraphProfiler callGraph;
+
+    private static final long DEADLINE_POLL = 1 << 16; //instructions between two looks at the clock
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    //instructions executed since reset, compiled loops count and poll both fields on every back jump
+    long retired;
+    long retireLimit = Long.MAX_VALUE;
+    private long compressAfter;
+    private long nextSweep;
+
     public ULM(IODevice io) {
+        this(io, VirtualMemory.DEFAULT_PAGE_SIZE);
+    }
+
+    //pageSize is a power of two, see VirtualMemory
+    public ULM(IODevice io, int pageSize) {
         this.io = io;
-        cpu = new CPU();
+        cpu = new CPU(new VirtualMemory(pageSize));
         observers = new ArrayList<>();
-        initInstructionSet();
-        initDisassemblies();
+        engine = Engine.INTERPRETER;
+        blocks = new HashMap<>();
     }
 
     public void reset() {
         cpu.reset();
         io.reset();
         halted = blocked = false;
+        decoded = null;
         instruction = null;
         errorMessage = null;
         exitCode = opcode = opfield = 0;
+        blocks.clear();
+        lastBlock = null;
+        retired = 0;
+        nextSweep = compressAfter;
         for (ObserverULM observer : observers) observer.reset();
     }
 
+    //captures registers, flags, ip and memory, the memory pages become shared copy on write
+    public Snapshot snapshot() {
+        ALU alu = cpu.alu;
+        alu.materializeFlags();
+        return new Snapshot(cpu.ip, alu.registers.clone(), alu.zf, alu.cf, alu.of, alu.sf, cpu.memory.snapshot());
+    }
+
+    //like reset followed by loading the snapshotted state, but only the pages written since are touched
+    //translated blocks survive as long as no code page was written
+    public void restore(Snapshot snapshot) {
+        io.reset();
+        halted = blocked = false;
+        decoded = null;
+        instruction = null;
+        errorMessage = null;
+        exitCode = opcode = opfield = 0;
+        lastBlock = null;
+        retired = 0;
+        nextSweep = compressAfter;
+        cpu.ir = 0;
+        cpu.ip = snapshot.ip;
+        cpu.jumped = false;
+        cpu.alu.restore(snapshot.registers, snapshot.zf, snapshot.cf, snapshot.of, snapshot.sf);
+        cpu.memory.restore(snapshot.memory);
+        if (!observers.isEmpty()) analyseNextInstruction();
+    }
+
+    //call before loading a program, the current memory contents are dropped
+    public void setPageTableType(PageTableType pageTableType) {
+        cpu.memory.setPageTableType(pageTableType);
+    }
+
+    //call before loading a program, the current memory contents are dropped
+    public void setMemoryBackend(MemoryBackend backend) {
+        cpu.memory.setBackend(backend);
+    }
+
+    //pages untouched for at least idleInstructions retired instructions get compressed, 0 turns this off
+    public void setPageCompression(long idleInstructions) {
+        compressAfter = idleInstructions;
+        nextSweep = retired + idleInstructions;
+    }
+
+    //memory is written to this image file when the program halts, null disables it
+    public void setPersistFile(Path persistFile) {
+        this.persistFile = persistFile;
+    }
+
+    //counts instructions, jumps and memory accesses while set, null turns it off
+    //a profiled machine interprets every instruction, translated and compiled blocks are not used meanwhile
+    //it counts in every run loop and in step, also while observers are attached
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null) profiler.setPageShift(cpu.memory.pageShift);
+        cpu.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    //attributes instructions to guest functions while set, null turns it off, runs like setProfiler
+    public void setCallGraphProfiler(CallGraphProfiler callGraph) {
+        this.callGraph = callGraph;
+    }
+
+    public CallGraphProfiler getCallGraphProfiler() {
+        return callGraph;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    //block entries before the TIERED engine compiles a block, 0 compiles every block on its first entry
+    public void setCompileThreshold(int entries) {
+        if (entries < 0) throw new IllegalArgumentException("Compile threshold must not be negative");
+        compileThreshold = entries;
+    }
+
+    //add and sub defer their flags until a conditional jump asks for them
+    public void setLazyFlags(boolean lazyFlags) {
+        cpu.alu.materializeFlags();
+        cpu.alu.lazyFlags = lazyFlags;
+    }
+
     public void addObserver(ObserverULM observer) {
         observers.add(observer);
     }
@@ -46,13 +173,45 @@ public class ULM {
         cpu.alu.addObserver(observer);
     }
 
+    //only accesses to the registers in registerMask reach the observer, the others cost no call
+    public void addObserverALU(ObserverALU observer, BitSet registerMask) {
+        cpu.alu.addObserver(observer, registerMask);
+    }
+
     public void addObserverMemory(ObserverMemory observer) {
         cpu.memory.addObserver(observer);
     }
 
+    //only accesses overlapping the length bytes from start reach the observer, pages outside cost no call
+    public void addObserverMemory(ObserverMemory observer, long start, long length) {
+        cpu.memory.addObserver(observer, start, length);
+    }
+
+    public void removeAllObservers() {
+        observers.clear();
+        cpu.alu.removeAllObservers();
+        cpu.memory.removeAllObservers();
+    }
+
+    //swaps the io device, e.g. when a pooled machine starts its next job
+    public void setIO(IODevice io) {
+        this.io = io;
+    }
+
+    private void fetchInstruction() {
+        decoded = cpu.memory.fetchDecoded(cpu.ip);
+        if (decoded == null) {
+            cpu.loadInstruction();
+            decoded = new DecodedInstruction(cpu.ir, INSTRUCTION_SET[cpu.ir >>> 24]);
+            cpu.memory.cacheDecoded(cpu.ip, decoded);
+        } else {
+            cpu.ir = decoded.ir;
+        }
+    }
+
     private void decodeInstruction() {
-        opcode = cpu.ir >>> 24;
-        instruction = instructionSet[opcode];
+        opcode = decoded.opcode;
+        instruction = decoded.instruction;
         if (instruction == null) {
             halted = true;
             errorMessage = "illegal instruction: " + Integer.toHexString(opcode);
@@ -62,7 +221,16 @@ public class ULM {
     }
 
     public boolean step() {
-        cpu.loadInstruction();
+        if (profiler == null && callGraph == null) return stepNotifying();
+        long ip = cpu.ip;
+        boolean running = stepNotifying();
+        countProfiled(ip);
+        return running;
+    }
+
+    private boolean stepNotifying() {
+        retired++;
+        fetchInstruction();
 
         decodeInstruction();
 
@@ -71,7 +239,7 @@ public class ULM {
             return false;
         }
 
-        instruction.execute(this, new OperationField(opfield));
+        instruction.execute(this, decoded.opfield);
 
         if (halted) {
             for (ObserverULM observer : observers) observer.onHalt(exitCode, errorMessage);
@@ -83,41 +251,298 @@ public class ULM {
 
         cpu.incrementIP();
 
-        analyseNextInstruction();
+        if (!observers.isEmpty()) analyseNextInstruction();
 
         return true;
     }
 
+    //same as step, but without any observer dispatch or disassembly
+    private void stepHeadless() {
+        retired++;
+        fetchInstruction();
+
+        decodeInstruction();
+        if (halted) return;
+
+        instruction.execute(this, decoded.opfield);
+        if (halted || blocked) return;
+
+        cpu.incrementIP();
+    }
+
+    private void stepProfiled() {
+        long ip = cpu.ip;
+        stepHeadless();
+        countProfiled(ip);
+    }
+
+    //counts the instruction that was just executed from ip
+    private void countProfiled(long ip) {
+        if (decoded == null) return;
+        if (profiler != null)
+            profiler.countInstruction(ip, decoded.ir, !halted && !blocked && cpu.ip != ip + 4 && BasicBlock.isJump(decoded.opcode));
+        if (callGraph != null) callGraph.countInstruction(ip, decoded, cpu.ip);
+    }
+
     public int run() {
         while (!halted) {
             step();
+            if (compressAfter != 0 && retired >= nextSweep) sweepColdPages();
         }
         if (errorMessage != null)
             System.out.println(errorMessage);
         return exitCode;
     }
 
+    //runs the fast path while nothing is listening and falls back to step as soon as an observer is attached
+    public int runHeadless() {
+        while (!halted) {
+            dispatch();
+        }
+        if (errorMessage != null)
+            System.out.println(errorMessage);
+        return exitCode;
+    }
+
+    //runs until the program halts, blocks in getc or has retired maxInstructions
+    //the budget is checked at jumps, so a run may overshoot by the rest of a basic block
+    //a blocked getc is retried and an exhausted budget continues where it stopped, so call it again to go on
+    public RunResult run(long maxInstructions) {
+        return run(maxInstructions, NO_DEADLINE);
+    }
+
+    //like run(maxInstructions), but also stops once timeout has passed, the clock is read every few thousand instructions
+    public RunResult run(long maxInstructions, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        return run(maxInstructions, deadline == NO_DEADLINE ? deadline - 1 : deadline);
+    }
+
+    public RunResult run(Duration timeout) {
+        return run(Long.MAX_VALUE, timeout);
+    }
+
+    private RunResult run(long maxInstructions, long deadline) {
+        long start = retired;
+        long limit = maxInstructions >= Long.MAX_VALUE - start ? Long.MAX_VALUE : start + maxInstructions;
+        blocked = false;
+        try {
+            while (!halted && !blocked && retired < limit) {
+                retireLimit = deadline == NO_DEADLINE ? limit : Math.min(limit, retired + DEADLINE_POLL);
+                while (!halted && !blocked && retired < retireLimit) {
+                    dispatch();
+                }
+                if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0) break;
+            }
+        } catch (RuntimeException e) {
+            //the faulting instruction's ip and ir are still in the cpu
+            halted = true;
+            errorMessage = e.getMessage() != null ? e.getMessage() : e.toString();
+            for (ObserverULM observer : observers) observer.onHalt(exitCode, errorMessage);
+        } finally {
+            retireLimit = Long.MAX_VALUE;
+        }
+        RunResult.Status status;
+        if (halted) status = errorMessage != null ? RunResult.Status.ERROR : RunResult.Status.HALTED;
+        else if (blocked) status = RunResult.Status.BLOCKED;
+        else status = RunResult.Status.BUDGET_EXHAUSTED;
+        return new RunResult(status, retired - start, exitCode, errorMessage);
+    }
+
+    private void dispatch() {
+        if (isObserved()) step();
+        else if (profiler != null || callGraph != null) stepProfiled();
+        else if (engine != Engine.INTERPRETER) executeBlock();
+        else stepHeadless();
+        if (compressAfter != 0 && retired >= nextSweep) sweepColdPages();
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    //address of the next instruction
+    public long getIP() {
+        return cpu.ip;
+    }
+
+    //word of the instruction that ran last, after an error the faulting one
+    public int getIR() {
+        return cpu.ir;
+    }
+
+    public IODevice getIO() {
+        return io;
+    }
+
+    private void sweepColdPages() {
+        cpu.memory.compressColdPages();
+        nextSweep = retired + compressAfter;
+    }
+
+    private void executeBlock() {
+        VirtualMemory memory = cpu.memory;
+        BasicBlock block = lastBlock != null ? lastBlock.next : null;
+        if (block == null || block.entry != cpu.ip || block.generation != memory.codeGeneration) {
+            block = lookupBlock(cpu.ip);
+            if (block == null) {
+                lastBlock = null;
+                stepHeadless();
+                return;
+            }
+            if (lastBlock != null) lastBlock.next = block;
+        }
+
+        DecodedInstruction[] body = block.body;
+        if (body.length == 0 && !block.terminated) {
+            //the block starts at an illegal instruction, let the interpreter report it
+            lastBlock = null;
+            stepHeadless();
+            return;
+        }
+        if (engine == Engine.TIERED) {
+            if (block.compiled == null && block.entries++ == compileThreshold) {
+                block.compiled = BlockCompiler.compile(block);
+            }
+            if (block.compiled != null) {
+                //the compiled code counts the instructions it ran at every exit, faults included
+                cpu.ip = block.compiled.execute(cpu, this);
+                lastBlock = block;
+                //compiled blocks stop in front of halt, getc and putc
+                long end = block.entry + 4L * body.length;
+                if (block.terminated && !BasicBlock.isJump(block.terminator.opcode) && cpu.ip == end) stepHeadless();
+                return;
+            }
+        }
+
+        int i = 0;
+        try {
+            for (; i < body.length; i++) {
+                body[i].instruction.execute(this, body[i].opfield);
+                if (block.stores[i] && memory.codeGeneration != block.generation) {
+                    //the block just overwrote code, continue behind the store with a fresh translation
+                    cpu.ir = body[i].ir;
+                    cpu.ip = block.entry + 4L * (i + 1);
+                    retired += i + 1;
+                    lastBlock = null;
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            cpu.ir = body[i].ir;
+            cpu.ip = block.entry + 4L * i;
+            retired += i + 1; //the faulting instruction counts like in stepHeadless
+            throw e;
+        }
+        retired += body.length;
+        cpu.ip = block.entry + 4L * body.length;
+        if (body.length > 0) cpu.ir = body[body.length - 1].ir;
+        lastBlock = block;
+
+        if (block.terminated) stepHeadless();
+    }
+
+    private BasicBlock lookupBlock(long entry) {
+        if ((entry & 0x3) != 0) return null; //let the interpreter report the alignment error
+        if (blocksGeneration != cpu.memory.codeGeneration) {
+            blocks.clear();
+            blocksGeneration = cpu.memory.codeGeneration;
+        }
+        BasicBlock block = blocks.get(entry);
+        if (block == null) {
+            block = translateBlock(entry);
+            blocks.put(entry, block);
+        }
+        return block;
+    }
+
+    private BasicBlock translateBlock(long entry) {
+        ArrayList<DecodedInstruction> body = new ArrayList<>();
+        DecodedInstruction terminator = null;
+        long address = entry;
+        while (body.size() < BasicBlock.MAX_LENGTH) {
+            DecodedInstruction next = decodeAt(address);
+            if (next.instruction == null) break; //the interpreter reports illegal instructions once they are reached
+            if (BasicBlock.isTerminator(next.opcode)) {
+                terminator = next;
+                break;
+            }
+            body.add(next);
+            address += 4;
+        }
+        return new BasicBlock(entry, body.toArray(new DecodedInstruction[0]), terminator, cpu.memory.codeGeneration);
+    }
+
+    //decodes through the predecoded cache so that a write to the block's code bumps the code generation
+    private DecodedInstruction decodeAt(long address) {
+        DecodedInstruction decoded = cpu.memory.fetchDecoded(address);
+        if (decoded == null) {
+            int ir = (int) cpu.memory.peek(address, 4);
+            decoded = new DecodedInstruction(ir, INSTRUCTION_SET[ir >>> 24]);
+            cpu.memory.cacheDecoded(address, decoded);
+        }
+        return decoded;
+    }
+
+    public boolean isObserved() {
+        return !observers.isEmpty() || !cpu.alu.observers.isEmpty() || !cpu.memory.observers.isEmpty();
+    }
+
     public void loadProgram(int[] program) {
         cpu.memory.loadProgram(program);
-        analyseNextInstruction();
+        if (!observers.isEmpty()) analyseNextInstruction();
+    }
+
+    public void loadImage(Path file) throws IOException {
+        cpu.memory.loadImage(file);
+        if (!observers.isEmpty()) analyseNextInstruction();
+    }
+
+    //references the pages of a shared image instead of copying them, they are privatized on the first write
+    public void loadImage(MemoryImage image) {
+        cpu.memory.restore(image);
+        if (!observers.isEmpty()) analyseNextInstruction();
+    }
+
+    public long privateMemoryBytes() {
+        return cpu.memory.privateBytes();
+    }
+
+    public long sharedMemoryBytes() {
+        return cpu.memory.sharedBytes();
     }
 
     private void analyseNextInstruction() {
         int nextOpfield = (int) cpu.memory.peek(cpu.ip, 4);
-        int nextOpcode = nextOpfield >>> 24;
-        String disassembly;
-        if (instructionSet[nextOpcode] != null) {
-            if (disassemblies[nextOpcode] != null) {
-                disassembly = disassemblies[nextOpcode].disassembly(new OperationField(nextOpfield & 0xFFFFFF));
-            } else {
-                disassembly = "not implemented";
-            }
-        } else {
-            disassembly = "illegal instruction";
+        int slot = (nextOpfield * 0x9E3779B9) >>> (32 - DISASSEMBLY_CACHE_BITS);
+        String disassembly = disassembled[slot];
+        if (disassembly == null || disassembledWords[slot] != nextOpfield) {
+            disassembly = disassemble(nextOpfield);
+            disassembled[slot] = disassembly;
+            disassembledWords[slot] = nextOpfield;
         }
         for (ObserverULM observer : observers) observer.nextInstruction(nextOpfield, disassembly);
     }
 
+    //assembler text of an instruction word, e.g. for traces recorded elsewhere
+    public static String disassemble(int ir) {
+        int opcode = ir >>> 24;
+        if (INSTRUCTION_SET[opcode] == null) return "illegal instruction";
+        if (DISASSEMBLIES[opcode] == null) return "not implemented";
+        return DISASSEMBLIES[opcode].disassembly(new OperationField(ir & 0xFFFFFF));
+    }
+
     private void getc(OperationField opfield) {
         if (io.hasNextChar()) {
             blocked = false;
@@ -135,17 +560,27 @@ public class ULM {
     }
 
     private void rHalt(OperationField opfield) {
-        exitCode = (int) (cpu.alu.read(opfield.rX) & 0xFFL);
-        halted = true;
+        halt((int) (cpu.alu.read(opfield.rX) & 0xFFL));
     }
 
     private void uHalt(OperationField opfield) {
-        exitCode = (int) (opfield.uX & 0xFFL);
+        halt((int) (opfield.uX & 0xFFL));
+    }
+
+    private void halt(int exitCode) {
+        this.exitCode = exitCode;
         halted = true;
+        if (persistFile != null) {
+            try {
+                cpu.memory.persist(persistFile);
+            } catch (IOException e) {
+                errorMessage = "could not persist memory: " + e.getMessage();
+            }
+        }
     }
 
-    private void initInstructionSet() {
-        instructionSet = new Instruction[256];
+    private static Instruction[] initInstructionSet() {
+        Instruction[] instructionSet = new Instruction[256];
         //HALT
         instructionSet[0x01] = (ulm, opfield) -> ulm.rHalt(opfield);
         instructionSet[0x09] = (ulm, opfield) -> ulm.uHalt(opfield);
@@ -261,10 +696,11 @@ public class ULM {
         instructionSet[0x85] = (ulm, opfield) -> ulm.cpu.rFetch(opfield, 4, 2, true);
         instructionSet[0xA5] = (ulm, opfield) -> ulm.cpu.rFetch(opfield, 4, 4, true);
         instructionSet[0xC5] = (ulm, opfield) -> ulm.cpu.rFetch(opfield, 4, 8, true);
+        return instructionSet;
     }
 
-    private void initDisassemblies() {
-        disassemblies = new Disassembly[256];
+    private static Disassembly[] initDisassemblies() {
+        Disassembly[] disassemblies = new Disassembly[256];
         //HALT
         disassemblies[0x01] = (opfield) -> format_R("halt", opfield.rX);
         disassemblies[0x09] = (opfield) -> format_US("halt", opfield.uX);
@@ -380,6 +816,7 @@ public class ULM {
         disassemblies[0x85] = (opfield) -> format_MRR_R("movslq", opfield.rX, opfield.rY, opfield.rZ, 2);
         disassemblies[0xA5] = (opfield) -> format_MRR_R("movslq", opfield.rX, opfield.rY, opfield.rZ, 4);
         disassemblies[0xC5] = (opfield) -> format_MRR_R("movslq", opfield.rX, opfield.rY, opfield.rZ, 8);
+        return disassemblies;
     }
 
     private static String format_R(String op, int x){
@@ -0,0 +1,43 @@
+package de.fs_cse.core;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//reuses reset machines across short jobs instead of building and warming up a new one each time, safe to share between threads
+public class ULMPool {
+
+    private final ConcurrentLinkedDeque<ULM> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    public ULMPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    //a reset machine using io, load a program before running it
+    public ULM acquire(IODevice io) {
+        ULM ulm = idle.pollFirst(); //most recently released first, its arrays are most likely still in cache
+        if (ulm == null) return new ULM(io);
+        idleCount.decrementAndGet();
+        ulm.setIO(io);
+        return ulm;
+    }
+
+    //the caller must not use ulm afterwards, observers, profilers and the persist file are removed, engine and memory settings are kept
+    public void release(ULM ulm) {
+        ulm.removeAllObservers();
+        ulm.setProfiler(null);
+        ulm.setCallGraphProfiler(null);
+        ulm.setPersistFile(null);
+        ulm.reset();
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offerFirst(ulm);
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
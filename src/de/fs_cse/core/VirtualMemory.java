@@ -1,121 +1,822 @@
 package de.fs_cse.core;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class VirtualMemory {
 
-    public static int PAGE_SIZE = 1024;
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+    public static final int MIN_PAGE_SIZE = 64;
+    public static final int MAX_PAGE_SIZE = 1 << 24;
 
-    public Map<Long, MemoryPage> pages;
+    //fixed per instance, a power of two so addresses split with a shift and a mask
+    public final int pageShift;
+    public final int pageSize;
+    public final long pageMask;
+
+    private static final long MAP_CHUNK = 1L << 30; //images are mapped in pieces a ByteBuffer can address
+
+    //direct mapped caches of recently used pages in front of the page table, one for data and one for instructions
+    private static final int TLB_SIZE = 64;
+
+    //word views on the page bytes, one access per aligned value instead of a loop over its bytes
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    //decode caches of shared pages are filled by every machine fetching from the image, see cacheDecoded
+    private static final VarHandle DECODED;
+    private static final VarHandle DECODED_SLOT = MethodHandles.arrayElementVarHandle(DecodedInstruction[].class);
+
+    static {
+        try {
+            DECODED = MethodHandles.lookup().findVarHandle(MemoryPage.class, "decoded", DecodedInstruction[].class);
+        } catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public PageTable pages;
+    private PageTableType pageTableType = PageTableType.HASH;
+    private MemoryBackend backend;
+
+    private final long[] tlbKeys = new long[TLB_SIZE];
+    private final MemoryPage[] tlbPages = new MemoryPage[TLB_SIZE];
+    private final long[] itlbKeys = new long[TLB_SIZE];
+    private final MemoryPage[] itlbPages = new MemoryPage[TLB_SIZE];
 
     public ArrayList<ObserverMemory> observers;
+    private final ArrayList<long[]> observedRanges = new ArrayList<>(); //per observer start and length, null for everything
+    private boolean observeAll;
+    //whether some observed range touches a page, cached per page like the tlb so that unwatched accesses skip the dispatch
+    private final long[] watchKeys = new long[TLB_SIZE];
+    private final boolean[] watchedPages = new boolean[TLB_SIZE];
+
+    public int codeGeneration; //incremented whenever a write hits a predecoded instruction
+
+    //image the pages were last snapshotted from or restored to and the keys that changed since
+    private MemoryImage base;
+    private long[] dirtyKeys = new long[16];
+    private int dirtyCount;
+
+    //created on first use by compressColdPages and inflate
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] compressBuffer;
 
     public VirtualMemory(){
-        pages = new HashMap<>();
+        this(DEFAULT_PAGE_SIZE, new HeapMemoryBackend());
+    }
+
+    public VirtualMemory(MemoryBackend backend){
+        this(DEFAULT_PAGE_SIZE, backend);
+    }
+
+    public VirtualMemory(int pageSize){
+        this(pageSize, new HeapMemoryBackend());
+    }
+
+    public VirtualMemory(int pageSize, MemoryBackend backend){
+        if(Integer.bitCount(pageSize) != 1 || pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size must be a power of two between " + MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE);
+        this.pageSize = pageSize;
+        pageShift = Integer.numberOfTrailingZeros(pageSize);
+        pageMask = pageSize - 1;
+        this.backend = backend;
+        pages = newPageTable();
         observers = new ArrayList<>();
+        Arrays.fill(watchKeys, -1); //never a page key, pageShift is at least 6
     }
 
     public void reset(){
-        pages = new HashMap<>();
+        backend.release();
+        pages.clear();
+        base = null;
+        dirtyCount = 0;
+        flushTlb();
         for(ObserverMemory observer : observers) observer.reset();
     }
 
+    //switches the page table implementation, the current contents are dropped
+    public void setPageTableType(PageTableType pageTableType){
+        this.pageTableType = pageTableType;
+        reset();
+        pages = newPageTable();
+    }
+
+    private PageTable newPageTable(){
+        if(pageTableType == PageTableType.RADIX) return new RadixPageTable(pageShift);
+        return new HashPageTable();
+    }
+
+    //switches where pages are allocated, the current contents are dropped
+    public void setBackend(MemoryBackend backend){
+        this.backend.release();
+        this.backend = backend;
+        pages = newPageTable();
+        base = null;
+        dirtyCount = 0;
+        flushTlb();
+    }
+
+    //freezes the current pages into an image, from now on they are copied before they are written
+    public MemoryImage snapshot(){
+        PageTable shared = pages.copy();
+        for(long key : shared.keys()) shared.get(key).copyOnWrite = true;
+        base = new MemoryImage(shared, pageSize);
+        dirtyCount = 0;
+        return base;
+    }
+
+    //puts back the pages of image, only the changed pages are touched when image is the current base
+    public void restore(MemoryImage image){
+        if(image.pageSize != pageSize) throw new IllegalArgumentException("Image has a different page size");
+        if(image == base){
+            for(int i = 0; i < dirtyCount; i++){
+                long key = dirtyKeys[i];
+                MemoryPage original = image.pages.get(key);
+                MemoryPage page = pages.get(key);
+                if(page == original) continue;
+                drop(page);
+                if(original == null) pages.remove(key);
+                else pages.put(key, original);
+            }
+        } else {
+            for(long key : pages.keys()) drop(pages.get(key));
+            pages = newPageTable();
+            for(long key : image.pages.keys()) pages.put(key, image.pages.get(key));
+            base = image;
+            codeGeneration++;
+        }
+        dirtyCount = 0;
+        flushTlb();
+    }
+
+    //bytes of pages owned by this memory alone
+    public long privateBytes(){
+        long bytes = 0;
+        for(long key : pages.keys()){
+            MemoryPage page = pages.get(key);
+            if(!page.copyOnWrite) bytes += page.residentBytes();
+        }
+        return bytes;
+    }
+
+    //bytes of pages referenced from an image or a mapped file and possibly used by other memories too
+    public long sharedBytes(){
+        long bytes = 0;
+        for(long key : pages.keys()){
+            MemoryPage page = pages.get(key);
+            if(page.copyOnWrite) bytes += page.residentBytes();
+        }
+        return bytes;
+    }
+
+    //second chance sweep: private pages not accessed since the last sweep are deflated, all zero ones are dropped
+    //pages holding predecoded code and shared pages are left alone
+    public void compressColdPages(){
+        if(deflater == null){
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            compressBuffer = new byte[2 * pageSize];
+        }
+        ByteBuffer contents = ByteBuffer.wrap(compressBuffer, 0, pageSize);
+        for(long key : pages.keys()){
+            MemoryPage page = pages.get(key);
+            if(page.copyOnWrite) continue; //may belong to an image other threads read, not even the flag is written
+            if(page.referenced){
+                page.referenced = false;
+                continue;
+            }
+            if(page.decoded != null || page instanceof CompressedPage) continue;
+
+            contents.clear();
+            page.loadBytes(0, contents, pageSize);
+            if(isZero(compressBuffer, pageSize)){
+                pages.remove(key); //absent pages read as zero
+                backend.freePage(page);
+                continue;
+            }
+            deflater.reset();
+            deflater.setInput(compressBuffer, 0, pageSize);
+            deflater.finish();
+            int length = deflater.deflate(compressBuffer, pageSize, pageSize);
+            if(!deflater.finished() || length > pageSize / 2) continue; //not worth it
+            pages.put(key, new CompressedPage(Arrays.copyOfRange(compressBuffer, pageSize, pageSize + length)));
+            backend.freePage(page);
+        }
+        flushTlb(); //accesses after the sweep have to go through the page table again to mark their page
+    }
+
+    private MemoryPage inflate(long key, CompressedPage compressed){
+        MemoryPage page = backend.allocatePage(this);
+        byte[] bytes = new byte[pageSize];
+        if(inflater == null) inflater = new Inflater(); //the page may come from an image another memory compressed
+        try {
+            inflater.reset();
+            inflater.setInput(compressed.data);
+            inflater.inflate(bytes);
+        } catch(DataFormatException e){
+            throw new IllegalStateException("Corrupt compressed page", e);
+        }
+        page.storeBytes(0, ByteBuffer.wrap(bytes), pageSize);
+        //the inflated page belongs to this memory alone and goes back to the backend when dropped
+        //a snapshotted compressed page stays in its image, restoring the image puts it back in place of this one
+        pages.put(key, page);
+        if(compressed.copyOnWrite && base != null) markDirty(key);
+        return page;
+    }
+
+    private static boolean isZero(byte[] bytes, int length){
+        for(int i = 0; i < length; i++){
+            if(bytes[i] != 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean isZero(ByteBuffer src, int length){
+        for(int i = src.position(); i < src.position() + length; i++){
+            if(src.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private void drop(MemoryPage page){
+        if(page == null || page.copyOnWrite || page instanceof CompressedPage) return; //not allocated by the backend or still used by an image
+        if(page.decoded != null) codeGeneration++; //translated blocks may come from this page
+        backend.freePage(page);
+    }
+
+    private void markDirty(long key){
+        if(dirtyCount == dirtyKeys.length) dirtyKeys = Arrays.copyOf(dirtyKeys, dirtyCount * 2);
+        dirtyKeys[dirtyCount++] = key;
+    }
+
+    private void flushTlb(){
+        for(int i = 0; i < TLB_SIZE; i++){
+            tlbPages[i] = null;
+            itlbPages[i] = null;
+        }
+    }
+
+    //page lookup for data accesses, absent pages are not cached
+    private MemoryPage page(long key){
+        int slot = (int) key & (TLB_SIZE - 1);
+        MemoryPage page = tlbPages[slot];
+        if(page != null && tlbKeys[slot] == key) return page;
+        page = pages.get(key);
+        if(page != null){
+            if(page instanceof CompressedPage) page = inflate(key, (CompressedPage) page);
+            if(!page.copyOnWrite) page.referenced = true; //shared pages are never swept, and other threads may read them
+            tlbKeys[slot] = key;
+            tlbPages[slot] = page;
+        }
+        return page;
+    }
+
+    //page lookup for instruction fetches
+    private MemoryPage codePage(long key){
+        int slot = (int) key & (TLB_SIZE - 1);
+        MemoryPage page = itlbPages[slot];
+        if(page != null && itlbKeys[slot] == key) return page;
+        page = pages.get(key);
+        if(page != null){
+            if(page instanceof CompressedPage) page = inflate(key, (CompressedPage) page);
+            if(!page.copyOnWrite) page.referenced = true;
+            itlbKeys[slot] = key;
+            itlbPages[slot] = page;
+        }
+        return page;
+    }
+
     public void addObserver(ObserverMemory observer){
         observers.add(observer);
+        observedRanges.add(null);
+        observeAll = true;
+    }
+
+    //the observer only hears about accesses overlapping the length bytes from start, the range may wrap around
+    public void addObserver(ObserverMemory observer, long start, long length){
+        observers.add(observer);
+        observedRanges.add(new long[]{start, length});
+        Arrays.fill(watchKeys, -1);
+    }
+
+    public void removeAllObservers(){
+        observers.clear();
+        observedRanges.clear();
+        observeAll = false;
+        Arrays.fill(watchKeys, -1);
+    }
+
+    private boolean isWatched(long key){
+        if(observeAll) return true;
+        int slot = (int) key & (TLB_SIZE - 1);
+        if(watchKeys[slot] != key){
+            long address = key << pageShift;
+            boolean watched = false;
+            for(long[] range : observedRanges){
+                if(range != null && overlaps(range, address, pageSize)) watched = true;
+            }
+            watchKeys[slot] = key;
+            watchedPages[slot] = watched;
+        }
+        return watchedPages[slot];
+    }
+
+    private static boolean overlaps(long[] range, long address, long numBytes){
+        return Long.compareUnsigned(address - range[0], range[1]) < 0 || Long.compareUnsigned(range[0] - address, numBytes) < 0;
+    }
+
+    private void notifyRead(long address, int numBytes, long value){
+        for(int i = 0; i < observers.size(); i++){
+            long[] range = observedRanges.get(i);
+            if(range == null || overlaps(range, address, numBytes)) observers.get(i).onRead(address, numBytes, value);
+        }
+    }
+
+    private void notifyWrite(long address, int numBytes, long value){
+        for(int i = 0; i < observers.size(); i++){
+            long[] range = observedRanges.get(i);
+            if(range == null || overlaps(range, address, numBytes)) observers.get(i).onWrite(address, numBytes, value);
+        }
     }
 
     public long read(long address, int numBytes){
         long value = peek(address, numBytes);
-        for(ObserverMemory observer : observers) observer.onRead(address, numBytes, value);
+        if(!observers.isEmpty() && isWatched(address >>> pageShift)) notifyRead(address, numBytes, value);
         return value;
     }
 
     //reads bytes from memory w/o informing the observers
     public long peek(long address, int numBytes){
-        long key = Long.divideUnsigned(address, PAGE_SIZE);
-        int offset = (int) Long.remainderUnsigned(address, PAGE_SIZE);
+        long key = address >>> pageShift;
+        int offset = (int) (address & pageMask);
 
         long value = 0;
-        MemoryPage page = pages.get(key);
+        MemoryPage page = page(key);
         if(page != null) value = page.get(offset, numBytes);
 
         return value;
     }
 
     public void write(long address, int numBytes, long value){
-        long key = Long.divideUnsigned(address, PAGE_SIZE);
-        int offset = (int) Long.remainderUnsigned(address, PAGE_SIZE);
+        long key = address >>> pageShift;
+        int offset = (int) (address & pageMask);
+
+        MemoryPage page = page(key);
+        if(page == null && value == 0){
+            //absent pages read as zero already, only the alignment check remains
+            if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+        } else {
+            if(page == null || page.copyOnWrite) page = writablePage(key);
+            page.set(offset, numBytes, value);
+        }
+        if(!observers.isEmpty() && isWatched(key)) notifyWrite(address, numBytes, value);
+    }
 
-        MemoryPage page = pages.get(key);
+    //allocates missing pages and privatizes pages still shared with a mapped image
+    private MemoryPage writablePage(long key){
+        MemoryPage page = page(key);
         if(page == null){
-            page = new MemoryPage();
+            page = backend.allocatePage(this);
+            page.referenced = true;
             pages.put(key, page);
+            if(base != null) markDirty(key);
+        } else if(page.copyOnWrite){
+            MemoryPage shared = page;
+            page = backend.allocatePage(this);
+            page.referenced = true;
+            for(int i = 0; i < pageSize; i += 8) page.store(i, 8, shared.load(i, 8));
+            DecodedInstruction[] sharedDecoded = (DecodedInstruction[]) DECODED.getAcquire(shared);
+            if(sharedDecoded != null) page.decoded = sharedDecoded.clone(); //the shared page keeps caching its own bytes
+            pages.put(key, page);
+            if(base != null) markDirty(key);
+            flushTlb();
+        }
+        return page;
+    }
+
+    //returns the cached decoding of the instruction word at address or null on a miss
+    //a hit informs the observers just like the read it replaces
+    public DecodedInstruction fetchDecoded(long address){
+        if((address & 0x3) != 0) return null;
+        long key = address >>> pageShift;
+        int offset = (int) (address & pageMask);
+
+        MemoryPage page = codePage(key);
+        if(page == null) return null;
+        DecodedInstruction decoded;
+        if(page.copyOnWrite){
+            DecodedInstruction[] cache = (DecodedInstruction[]) DECODED.getAcquire(page);
+            if(cache == null) return null;
+            decoded = (DecodedInstruction) DECODED_SLOT.getAcquire(cache, offset >> 2);
+        } else {
+            if(page.decoded == null) return null;
+            decoded = page.decoded[offset >> 2];
+        }
+        if(decoded != null && !observers.isEmpty() && isWatched(key)) notifyRead(address, 4, decoded.ir);
+        return decoded;
+    }
+
+    public void cacheDecoded(long address, DecodedInstruction decoded){
+        long key = address >>> pageShift;
+        int offset = (int) (address & pageMask);
+
+        MemoryPage page = codePage(key);
+        if(page == null) return; //nothing to invalidate against, absent pages decode to illegal instructions anyway
+        if(page.copyOnWrite){
+            //the page may belong to a MemoryImage other threads fetch from right now, publish the array and the entry safely
+            if(DECODED.getAcquire(page) == null) DECODED.compareAndSet(page, null, new DecodedInstruction[pageSize / 4]);
+            DECODED_SLOT.setRelease((DecodedInstruction[]) DECODED.getAcquire(page), offset >> 2, decoded);
+            return;
         }
-        page.set(offset, numBytes, value);
-        for(ObserverMemory observer : observers) observer.onWrite(address, numBytes, value);
+        if(page.decoded == null) page.decoded = new DecodedInstruction[pageSize / 4];
+        page.decoded[offset >> 2] = decoded;
     }
 
     public void loadProgram(int[] program){
-        MemoryPage page = pages.get(0L);
-        long key = 0L;
-        int offset = 0;
-        for(int i = 0; i < program.length; i++){
-            if(i%PAGE_SIZE == 0){
-                page = pages.get(key);
-                if(page == null){
-                    page = new MemoryPage();
+        ByteBuffer bytes = ByteBuffer.allocate(program.length * 4); //big endian like the pages
+        bytes.asIntBuffer().put(program);
+        copyIn(0, bytes);
+        for(ObserverMemory observer : observers) observer.onLoadProgram(program);
+    }
+
+    //bulk accesses for the host side, copied page by page
+    //reads do not inform the observers, writes report every byte they change
+    public void readBytes(long address, ByteBuffer dst){
+        while(dst.hasRemaining()){
+            int offset = (int) (address & pageMask);
+            int length = Math.min(pageSize - offset, dst.remaining());
+            MemoryPage page = page(address >>> pageShift);
+            if(page != null){
+                page.getBytes(offset, dst, length);
+            } else {
+                for(int i = 0; i < length; i++) dst.put((byte) 0); //absent pages read as zero
+            }
+            address += length;
+        }
+    }
+
+    public void readBytes(long address, byte[] dst, int offset, int length){
+        readBytes(address, ByteBuffer.wrap(dst, offset, length));
+    }
+
+    public void writeBytes(long address, ByteBuffer src){
+        int start = src.position();
+        copyIn(address, src);
+        if(!observers.isEmpty()){
+            for(int i = start; i < src.position(); i++){
+                long at = address + (i - start);
+                if(isWatched(at >>> pageShift)) notifyWrite(at, 1, (long) src.get(i) & 0xFFL);
+            }
+        }
+    }
+
+    public void writeBytes(long address, byte[] src, int offset, int length){
+        writeBytes(address, ByteBuffer.wrap(src, offset, length));
+    }
+
+    public void fill(long address, long length, byte value){
+        long start = address;
+        for(long remaining = length; remaining > 0; ){
+            int offset = (int) (address & pageMask);
+            int n = (int) Math.min(pageSize - offset, remaining);
+            if(value != 0 || page(address >>> pageShift) != null) writablePage(address >>> pageShift).fill(offset, n, value);
+            address += n;
+            remaining -= n;
+        }
+        if(!observers.isEmpty()){
+            for(long i = 0; i < length; i++){
+                if(isWatched((start + i) >>> pageShift)) notifyWrite(start + i, 1, (long) value & 0xFFL);
+            }
+        }
+    }
+
+    //copies length bytes from source to destination, overlapping ranges behave like memmove
+    public void copy(long source, long destination, long length){
+        byte[] chunk = new byte[(int) Math.min(pageSize, length)];
+        boolean backwards = Long.compareUnsigned(destination - source, length) < 0; //destination starts inside the source range
+        for(long done = 0; done < length; ){
+            int n = (int) Math.min(chunk.length, length - done);
+            long at = backwards ? length - done - n : done;
+            readBytes(source + at, chunk, 0, n);
+            writeBytes(destination + at, chunk, 0, n);
+            done += n;
+        }
+    }
+
+    private void copyIn(long address, ByteBuffer src){
+        while(src.hasRemaining()){
+            int offset = (int) (address & pageMask);
+            int length = Math.min(pageSize - offset, src.remaining());
+            if(page(address >>> pageShift) == null && isZero(src, length)){
+                src.position(src.position() + length); //zeros need no page
+            } else {
+                writablePage(address >>> pageShift).putBytes(offset, src, length);
+            }
+            address += length;
+        }
+    }
+
+    //maps a flat big endian image file to address 0
+    //full pages read straight from the mapping and are copied on their first write, the file itself is never modified
+    public void loadImage(Path file) throws IOException {
+        long size;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            size = channel.size();
+            for(long chunkStart = 0; chunkStart < size; chunkStart += MAP_CHUNK){
+                long chunkSize = Math.min(MAP_CHUNK, size - chunkStart);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkSize);
+                for(int offset = 0; offset < chunkSize; offset += pageSize){
+                    int length = (int) Math.min(pageSize, chunkSize - offset);
+                    ByteBuffer bytes = chunk.slice(offset, length);
+                    MemoryPage page;
+                    if(length == pageSize){
+                        page = new DirectPage(bytes);
+                        page.copyOnWrite = true;
+                    } else {
+                        page = backend.allocatePage(this); //a partial last page is copied right away
+                        page.putBytes(0, bytes, length);
+                    }
+                    long key = (chunkStart + offset) >>> pageShift;
+                    MemoryPage replaced = pages.get(key);
+                    if(replaced != null) drop(replaced);
                     pages.put(key, page);
+                    if(base != null) markDirty(key);
                 }
-                key++;
-                offset = 0;
             }
-            page.set(offset, 4, program[i]);
-            offset += 4;
+        }
+        flushTlb();
+        codeGeneration++; //replaced pages may have held predecoded instructions
 
+        if(!observers.isEmpty()){
+            int[] program = new int[(int) Math.min(size / 4, Integer.MAX_VALUE)];
+            for(int i = 0; i < program.length; i++) program[i] = (int) peek(4L * i, 4);
+            for(ObserverMemory observer : observers) observer.onLoadProgram(program);
         }
-        for(ObserverMemory observer : observers) observer.onLoadProgram(program);
     }
 
-    public class MemoryPage {
-        public byte[] bytes;
+    //writes every page below address 2^63 to its offset in a flat image file, so the file can be loaded again
+    //pages in the upper half of the address space (the stack) have no file offset and are skipped
+    //the file is replaced, absent pages become holes that read as zero and it ends behind the highest present page
+    //the pages are written to a temporary file next to it first, they may still be mapped from the file being replaced
+    public void persist(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        Path directory = file.toAbsolutePath().getParent();
+        Path written = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try(FileChannel channel = FileChannel.open(written, StandardOpenOption.WRITE)){
+            for(long key : pages.keys()){
+                if(key > (Long.MAX_VALUE >>> pageShift)) continue;
+                MemoryPage page = page(key);
+                buffer.clear();
+                for(int i = 0; i < pageSize; i += 8) buffer.putLong(page.load(i, 8));
+                buffer.flip();
+                long position = key << pageShift;
+                while(buffer.hasRemaining()) position += channel.write(buffer, position);
+            }
+        } catch(IOException | RuntimeException e){
+            Files.deleteIfExists(written);
+            throw e;
+        }
+        try {
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e){
+            Files.move(written, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //a page of guest memory, subclasses decide where its bytes live
+    public abstract class MemoryPage {
+        public DecodedInstruction[] decoded; //predecoded instruction per 4-byte slot, allocated on first fetch
+        public boolean copyOnWrite; //shared with a mapped image, writes go to a private copy instead
+        public boolean referenced; //accessed since the last sweep of compressColdPages
 
-        public MemoryPage(){
-            bytes = new byte[PAGE_SIZE];
+        public int residentBytes(){
+            return pageSize;
         }
 
         public long get(int offset, int numBytes){
-            if(offset < 0 || offset+numBytes > PAGE_SIZE) throw new IndexOutOfBoundsException("Offset out of bounds");
+            if(offset < 0 || offset+numBytes > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
+            if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+            return load(offset, numBytes);
+        }
+
+        public void set(int offset, int numBytes, long value){
+            if(offset < 0 || offset+numBytes > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
+            if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+            invalidateDecoded(offset, numBytes);
+            store(offset, numBytes, value);
+        }
+
+        public void setLittleEndian(int offset, int numBytes, long value){
+            if(offset < 0 || offset+numBytes > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
             if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+            invalidateDecoded(offset, numBytes);
+
+            for(int i = 0; i < numBytes; i++){
+                store(offset+i, 1, value);
+                //>>>: unsigned shift
+                value = value >>> 8;
+            }
+        }
+
+        public void getBytes(int offset, ByteBuffer dst, int length){
+            if(offset < 0 || length < 0 || offset+length > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
+            loadBytes(offset, dst, length);
+        }
+
+        public void putBytes(int offset, ByteBuffer src, int length){
+            if(offset < 0 || length < 0 || offset+length > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
+            invalidateDecoded(offset, length);
+            storeBytes(offset, src, length);
+        }
+
+        public void fill(int offset, int length, byte value){
+            if(offset < 0 || length < 0 || offset+length > pageSize) throw new IndexOutOfBoundsException("Offset out of bounds");
+            invalidateDecoded(offset, length);
+            fillBytes(offset, length, value);
+        }
+
+        //big endian access without checks, numBytes is aligned and within the page
+        protected abstract long load(int offset, int numBytes);
+        protected abstract void store(int offset, int numBytes, long value);
+
+        //bulk access without checks, the buffer positions advance by length
+        protected abstract void loadBytes(int offset, ByteBuffer dst, int length);
+        protected abstract void storeBytes(int offset, ByteBuffer src, int length);
+        protected abstract void fillBytes(int offset, int length, byte value);
+
+        //self-modifying code: drop the predecoded instructions overlapping the written bytes
+        private void invalidateDecoded(int offset, int numBytes){
+            if(decoded == null) return;
+            for(int slot = offset >> 2; slot <= (offset+numBytes-1) >> 2; slot++){
+                if(decoded[slot] != null){
+                    decoded[slot] = null;
+                    codeGeneration++;
+                }
+            }
+        }
+    }
 
-            long ret = ((long)bytes[offset] & 0xFFL); //cast from byte to long: byte is sign extended, that's why we need &0xFF
+    //page backed by a byte array on the java heap
+    public class HeapPage extends MemoryPage {
+        public byte[] bytes;
+
+        public HeapPage(){
+            bytes = new byte[pageSize];
+        }
+
+        @Override
+        protected long load(int offset, int numBytes){
+            switch(numBytes){
+                case 1: return (long)bytes[offset] & 0xFFL; //cast from byte to long: byte is sign extended, that's why we need &0xFF
+                case 2: return (long)(short)SHORT.get(bytes, offset) & 0xFFFFL;
+                case 4: return (long)(int)INT.get(bytes, offset) & 0xFFFFFFFFL;
+                case 8: return (long)LONG.get(bytes, offset);
+            }
+            long ret = ((long)bytes[offset] & 0xFFL);
             for(int i = 1; i < numBytes; i++){
                 ret = (ret << 8) + ((long)bytes[i+offset] & 0xFFL);
             }
             return ret;
         }
 
-        public void set(int offset, int numBytes, long value){
-            if(offset < 0 || offset+numBytes > PAGE_SIZE) throw new IndexOutOfBoundsException("Offset out of bounds");
-            if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+        @Override
+        protected void store(int offset, int numBytes, long value){
+            switch(numBytes){
+                case 1: bytes[offset] = (byte)value; return; //cast to byte truncates everything but the lowest byte
+                case 2: SHORT.set(bytes, offset, (short)value); return;
+                case 4: INT.set(bytes, offset, (int)value); return;
+                case 8: LONG.set(bytes, offset, value); return;
+            }
             for(int i = numBytes-1; i >= 0; i--){
-                bytes[offset+i] = (byte)value; //cast to byte truncates everything but the lowest byte
+                bytes[offset+i] = (byte)value;
                 //>>>: unsigned shift
                 value = value >>> 8;
             }
         }
 
-        public void setLittleEndian(int offset, int numBytes, long value){
-            if(offset < 0 || offset+numBytes > PAGE_SIZE) throw new IndexOutOfBoundsException("Offset out of bounds");
-            if(offset%numBytes != 0) throw new IllegalArgumentException("Alignment error");
+        @Override
+        protected void loadBytes(int offset, ByteBuffer dst, int length){
+            dst.put(bytes, offset, length);
+        }
 
-            for(int i = 0; i < numBytes; i++){
-                bytes[offset+i] = (byte)value;
-                //>>>: unsigned shift
+        @Override
+        protected void storeBytes(int offset, ByteBuffer src, int length){
+            src.get(bytes, offset, length);
+        }
+
+        @Override
+        protected void fillBytes(int offset, int length, byte value){
+            Arrays.fill(bytes, offset, offset+length, value);
+        }
+    }
+
+    //page backed by a slice of native memory outside the java heap
+    public class DirectPage extends MemoryPage {
+        public ByteBuffer buffer; //big endian, exactly pageSize bytes
+
+        public DirectPage(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        @Override
+        protected long load(int offset, int numBytes){
+            switch(numBytes){
+                case 1: return (long)buffer.get(offset) & 0xFFL;
+                case 2: return (long)buffer.getShort(offset) & 0xFFFFL;
+                case 4: return (long)buffer.getInt(offset) & 0xFFFFFFFFL;
+                case 8: return buffer.getLong(offset);
+            }
+            long ret = ((long)buffer.get(offset) & 0xFFL);
+            for(int i = 1; i < numBytes; i++){
+                ret = (ret << 8) + ((long)buffer.get(i+offset) & 0xFFL);
+            }
+            return ret;
+        }
+
+        @Override
+        protected void store(int offset, int numBytes, long value){
+            switch(numBytes){
+                case 1: buffer.put(offset, (byte)value); return;
+                case 2: buffer.putShort(offset, (short)value); return;
+                case 4: buffer.putInt(offset, (int)value); return;
+                case 8: buffer.putLong(offset, value); return;
+            }
+            for(int i = numBytes-1; i >= 0; i--){
+                buffer.put(offset+i, (byte)value);
                 value = value >>> 8;
             }
         }
 
+        @Override
+        protected void loadBytes(int offset, ByteBuffer dst, int length){
+            dst.put(buffer.slice(offset, length));
+        }
+
+        @Override
+        protected void storeBytes(int offset, ByteBuffer src, int length){
+            buffer.put(offset, src, src.position(), length);
+            src.position(src.position() + length);
+        }
+
+        @Override
+        protected void fillBytes(int offset, int length, byte value){
+            for(int i = offset; i < offset+length; i++) buffer.put(i, value);
+        }
+    }
+
+    //deflated contents of a cold page, replaced by an inflated page on its next access
+    public class CompressedPage extends MemoryPage {
+        public final byte[] data;
+
+        public CompressedPage(byte[] data){
+            this.data = data;
+        }
+
+        @Override
+        public int residentBytes(){
+            return data.length;
+        }
+
+        @Override
+        protected long load(int offset, int numBytes){
+            throw new IllegalStateException("Compressed page");
+        }
+
+        @Override
+        protected void store(int offset, int numBytes, long value){
+            throw new IllegalStateException("Compressed page");
+        }
+
+        @Override
+        protected void loadBytes(int offset, ByteBuffer dst, int length){
+            throw new IllegalStateException("Compressed page");
+        }
+
+        @Override
+        protected void storeBytes(int offset, ByteBuffer src, int length){
+            throw new IllegalStateException("Compressed page");
+        }
+
+        @Override
+        protected void fillBytes(int offset, int length, byte value){
+            throw new IllegalStateException("Compressed page");
+        }
     }
 }
@@ -0,0 +1,55 @@
+package de.fs_cse.testing;
+
+import de.fs_cse.core.PageTableType;
+import de.fs_cse.core.VirtualMemory;
+
+//compares the page table implementations on typical guest access patterns, run with: java de.fs_cse.testing.PageTableBenchmark
+public class PageTableBenchmark {
+
+    private static final int ACCESSES = 1 << 21;
+    private static final int ROUNDS = 7;
+
+    public static void main(String[] args){
+        String[] patterns = {"sequential", "strided", "stack"};
+        for(String pattern : patterns){
+            for(PageTableType type : PageTableType.values()){
+                long best = Long.MAX_VALUE;
+                long checksum = 0;
+                for(int round = 0; round < ROUNDS; round++){
+                    VirtualMemory memory = new VirtualMemory();
+                    memory.setPageTableType(type);
+                    long start = System.nanoTime();
+                    checksum += run(memory, pattern);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%-10s %-5s %6.2f ns/access  %d pages  (%d)%n", pattern, type,
+                        (double) best / (2 * ACCESSES), pagesTouched(pattern), checksum);
+            }
+        }
+    }
+
+    //writes every address of the pattern once, then reads all of them back
+    private static long run(VirtualMemory memory, String pattern){
+        for(int i = 0; i < ACCESSES; i++) memory.write(address(pattern, i), 8, i + 1);
+        long sum = 0;
+        for(int i = 0; i < ACCESSES; i++) sum += memory.read(address(pattern, i), 8);
+        return sum;
+    }
+
+    private static long address(String pattern, int i){
+        switch(pattern){
+            case "sequential":
+                return 8L * i;
+            case "strided":
+                //a little more than the TLB reach apart, so most accesses go to the page table
+                return (long) (i & 0xFFF) * 65 * VirtualMemory.DEFAULT_PAGE_SIZE + 8L * (i >>> 12);
+            default:
+                return -8L * (i + 1); //stack growing down from the top of the address space
+        }
+    }
+
+    private static long pagesTouched(String pattern){
+        if(pattern.equals("strided")) return 0x1000;
+        return 8L * ACCESSES / VirtualMemory.DEFAULT_PAGE_SIZE;
+    }
+}
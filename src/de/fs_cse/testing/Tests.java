@@ -3,10 +3,33 @@ package de.fs_cse.testing;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import de.fs_cse.core.*;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 public class Tests {
 
     @Test
@@ -20,6 +43,442 @@ public class Tests {
         long value2 = memory.read(-4, 4);
         assertEquals(input1, value1);
         assertEquals(input2, value2);
+
+        //word accesses are big endian views of the same bytes
+        memory.write(8, 8, 0x0123456789ABCDEFL);
+        assertEquals(0x0123456789ABCDEFL, memory.read(8, 8));
+        assertEquals(0x89ABCDEFL, memory.read(12, 4));
+        assertEquals(0x4567L, memory.read(10, 2));
+        assertEquals(0x01L, memory.read(8, 1));
+        assertThrows(IllegalArgumentException.class, () -> memory.read(12, 8));
+    }
+
+    @Test
+    void testOffHeapMemory(){
+        VirtualMemory memory = new VirtualMemory(new OffHeapMemoryBackend());
+        memory.write(8, 8, 0x0123456789ABCDEFL);
+        memory.write(-4, 4, 0x89ABCDEFL);
+        assertEquals(0x0123456789ABCDEFL, memory.read(8, 8));
+        assertEquals(0x89ABCDEFL, memory.read(-4, 4));
+
+        //pages after a reset start out zeroed
+        memory.reset();
+        memory.write(0, 1, 0xFF);
+        assertEquals(0L, memory.read(8, 8));
+
+        //a reset releases the slabs, repeated runs do not pile up native memory
+        OffHeapMemoryBackend backend = new OffHeapMemoryBackend();
+        VirtualMemory pooled = new VirtualMemory(backend);
+        long reserved = 0;
+        for(int run = 0; run < 3; run++){
+            for(int page = 0; page < 200; page++) pooled.write((long) page * VirtualMemory.DEFAULT_PAGE_SIZE, 8, run + 1);
+            if(run == 0) reserved = backend.reservedBytes();
+            assertTrue(reserved >= 200 * VirtualMemory.DEFAULT_PAGE_SIZE);
+            assertEquals(reserved, backend.reservedBytes());
+            pooled.reset();
+            assertEquals(0, backend.reservedBytes());
+            assertEquals(0, pooled.read(8 * VirtualMemory.DEFAULT_PAGE_SIZE, 8));
+        }
+
+        //pages shared with an image are not reused
+        pooled.write(0, 8, 42);
+        MemoryImage image = pooled.snapshot();
+        pooled.reset();
+        for(int page = 0; page < 200; page++) pooled.write((long) page * VirtualMemory.DEFAULT_PAGE_SIZE, 8, -1);
+        pooled.restore(image);
+        assertEquals(42, pooled.read(0, 8));
+
+        //a machine takes its pages from the backend it is given
+        OffHeapMemoryBackend machineBackend = new OffHeapMemoryBackend();
+        ULM ulm = new ULM(new NullIO());
+        ulm.setMemoryBackend(machineBackend);
+        assertEquals(0, machineBackend.reservedBytes());
+        ulm.loadProgram(getProgramSelfModifying());
+        assertTrue(machineBackend.reservedBytes() >= VirtualMemory.DEFAULT_PAGE_SIZE);
+        ulm.run(Long.MAX_VALUE);
+        assertEquals(0x38100202L, memoryOf(ulm).read(8, 4));
+    }
+
+    @Test
+    void testBulkMemory(){
+        for(MemoryBackend backend : new MemoryBackend[]{new HeapMemoryBackend(), new OffHeapMemoryBackend()}){
+            VirtualMemory memory = new VirtualMemory(backend);
+
+            //programs spanning several pages land at their byte addresses
+            int[] program = new int[3 * VirtualMemory.DEFAULT_PAGE_SIZE / 4 + 5];
+            for(int i = 0; i < program.length; i++) program[i] = i * 0x01010101;
+            memory.loadProgram(program);
+            for(int i = 0; i < program.length; i++) assertEquals((long) program[i] & 0xFFFFFFFFL, memory.read(4L * i, 4));
+
+            long address = 5 * VirtualMemory.DEFAULT_PAGE_SIZE - 3;
+            byte[] data = new byte[VirtualMemory.DEFAULT_PAGE_SIZE + 7];
+            for(int i = 0; i < data.length; i++) data[i] = (byte) (i * 7);
+            memory.writeBytes(address, data, 0, data.length);
+            byte[] back = new byte[data.length + 2];
+            memory.readBytes(address - 1, back, 0, back.length);
+            assertEquals(0, back[0]);
+            for(int i = 0; i < data.length; i++) assertEquals(data[i], back[i + 1]);
+            assertEquals(0, back[back.length - 1]);
+
+            memory.fill(address, 10, (byte) 0x5A);
+            assertEquals(0x5A5A5A5AL, memory.read(5 * VirtualMemory.DEFAULT_PAGE_SIZE, 4));
+
+            //overlapping copies in both directions
+            memory.fill(address, data.length, (byte) 0);
+            memory.writeBytes(address, data, 0, data.length);
+            memory.copy(address, address + 3, data.length);
+            memory.readBytes(address + 3, back, 0, data.length);
+            for(int i = 0; i < data.length; i++) assertEquals(data[i], back[i]);
+            memory.copy(address + 3, address, data.length);
+            memory.readBytes(address, back, 0, data.length);
+            for(int i = 0; i < data.length; i++) assertEquals(data[i], back[i]);
+        }
+    }
+
+    @Test
+    void testPageSizes(){
+        for(int pageSize : new int[]{VirtualMemory.MIN_PAGE_SIZE, 4096, 1 << 20}){
+            VirtualMemory memory = new VirtualMemory(pageSize);
+            memory.write(pageSize - 8, 8, 0x0123456789ABCDEFL);
+            memory.write(pageSize, 8, -1);
+            assertEquals(0x0123456789ABCDEFL, memory.read(pageSize - 8, 8));
+            assertEquals(-1, memory.read(pageSize, 8));
+            assertEquals(2, memory.pages.size());
+            byte[] bytes = new byte[16];
+            memory.readBytes(pageSize - 8, bytes, 0, bytes.length);
+            assertEquals(0x01, bytes[0]);
+            assertEquals(-1, bytes[15]);
+
+            //the whole program fits on one page of the machine's size
+            ULM ulm = new ULM(new NullIO(), pageSize);
+            ulm.loadProgram(getProgramSelfModifying());
+            assertEquals(pageSize, ulm.privateMemoryBytes());
+            assertEquals(pageSize, ulm.snapshot().getMemory().pageSize);
+        }
+        assertThrows(IllegalArgumentException.class, () -> new VirtualMemory(3000));
+        assertThrows(IllegalArgumentException.class, () -> new VirtualMemory(4096).restore(MemoryImage.of(new int[]{0})));
+    }
+
+    @Test
+    void testPageTables(){
+        VirtualMemory memory = new VirtualMemory();
+        Random random = new Random(16);
+        VirtualMemory.MemoryPage[] pages = new VirtualMemory.MemoryPage[8];
+        for(int i = 0; i < pages.length; i++) pages[i] = memory.new HeapPage();
+        //keys near both ends of the address space, across the radix boundaries and far outside the tree
+        long[] keys = new long[64];
+        for(int i = 0; i < keys.length; i++){
+            long base = new long[]{0, 1L << 35, (-1L >>> 10) - 600, 1L << 50, 511}[i % 5];
+            keys[i] = base + random.nextInt(1200);
+        }
+        for(PageTable table : new PageTable[]{new HashPageTable(), new RadixPageTable(10)}){
+            HashMap<Long, VirtualMemory.MemoryPage> expected = new HashMap<>();
+            for(int i = 0; i < 20000; i++){
+                long key = keys[random.nextInt(keys.length)];
+                int operation = random.nextInt(3);
+                if(operation == 0){
+                    VirtualMemory.MemoryPage page = pages[random.nextInt(pages.length)];
+                    table.put(key, page);
+                    expected.put(key, page);
+                } else if(operation == 1){
+                    assertEquals(expected.remove(key), table.remove(key));
+                } else {
+                    assertEquals(expected.get(key), table.get(key));
+                }
+                assertEquals(expected.size(), table.size());
+            }
+            PageTable copy = table.copy();
+            long[] present = copy.keys();
+            assertEquals(expected.size(), present.length);
+            for(long key : present) assertEquals(expected.get(key), copy.get(key));
+        }
+
+        //a radix memory at both ends of the address space and outside the tree, before and after a snapshot
+        VirtualMemory radix = new VirtualMemory();
+        radix.setPageTableType(PageTableType.RADIX);
+        long[] addresses = {0, VirtualMemory.DEFAULT_PAGE_SIZE, -8, 1L << 50, -(1L << 50)};
+        for(int i = 0; i < addresses.length; i++) radix.write(addresses[i], 8, i + 1);
+        assertEquals(addresses.length, radix.pages.size());
+        MemoryImage image = radix.snapshot();
+        radix.write(0, 8, -1);
+        radix.write(1L << 50, 8, -1);
+        radix.restore(image);
+        for(int i = 0; i < addresses.length; i++) assertEquals(i + 1, radix.read(addresses[i], 8));
+    }
+
+    @Test
+    void testSnapshot(){
+        VirtualMemory memory = new VirtualMemory();
+        memory.write(0, 8, 1);
+        memory.write(VirtualMemory.DEFAULT_PAGE_SIZE, 8, 2);
+        MemoryImage image = memory.snapshot();
+        memory.write(0, 8, 3);
+        memory.write(-8, 8, 4);
+        memory.restore(image);
+        assertEquals(1, memory.read(0, 8));
+        assertEquals(2, memory.read(VirtualMemory.DEFAULT_PAGE_SIZE, 8));
+        assertEquals(0, memory.read(-8, 8));
+        assertEquals(2, memory.pages.size());
+
+        //the self-modifying program patches its own page, restoring has to bring back the original code
+        for(Engine engine : Engine.values()){
+            ULM ulm = new ULM(new NullIO());
+            ulm.setEngine(engine);
+            ulm.loadProgram(getProgramSelfModifying());
+            Snapshot snapshot = ulm.snapshot();
+            RunResult first = ulm.run(Long.MAX_VALUE);
+            for(int i = 0; i < 3; i++){
+                ulm.restore(snapshot);
+                assertEquals(0, ulm.privateMemoryBytes()); //only the snapshot's pages, shared
+                assertEquals(getProgramSelfModifying()[2], (int) memoryOf(ulm).read(8, 4));
+                RunResult again = ulm.run(Long.MAX_VALUE);
+                assertEquals(first.exitCode, again.exitCode);
+                assertEquals(first.retiredInstructions, again.retiredInstructions);
+            }
+        }
+    }
+
+    @Test
+    void testSharedImage(){
+        MemoryImage image = MemoryImage.of(getProgramSelfModifying());
+        ULM[] ulms = new ULM[3];
+        for(int i = 0; i < ulms.length; i++){
+            ulms[i] = new ULM(new NullIO());
+            ulms[i].loadImage(image);
+            assertEquals(0, ulms[i].privateMemoryBytes());
+            assertEquals(VirtualMemory.DEFAULT_PAGE_SIZE, ulms[i].sharedMemoryBytes());
+        }
+        for(ULM ulm : ulms){
+            assertEquals(17, ulm.run());
+            assertEquals(VirtualMemory.DEFAULT_PAGE_SIZE, ulm.privateMemoryBytes());
+            assertEquals(0, ulm.sharedMemoryBytes());
+        }
+        //the patches went to private copies, the image still holds the original code
+        VirtualMemory original = new VirtualMemory();
+        original.restore(image);
+        assertEquals(getProgramSelfModifying()[2], (int) original.read(8, 4));
+    }
+
+    @Test
+    void testZeroAndCompressedPages(){
+        VirtualMemory memory = new VirtualMemory();
+        memory.write(8 * VirtualMemory.DEFAULT_PAGE_SIZE, 8, 0);
+        memory.fill(0, 4 * VirtualMemory.DEFAULT_PAGE_SIZE, (byte) 0);
+        assertEquals(0, memory.pages.size());
+        assertThrows(IllegalArgumentException.class, () -> memory.write(4, 8, 0));
+
+        for(int i = 0; i < VirtualMemory.DEFAULT_PAGE_SIZE; i += 8) memory.write(i, 8, i % 24);
+        memory.write(VirtualMemory.DEFAULT_PAGE_SIZE, 8, 1);
+        memory.write(VirtualMemory.DEFAULT_PAGE_SIZE, 8, 0);
+        memory.write(2 * VirtualMemory.DEFAULT_PAGE_SIZE, 8, 1);
+        memory.compressColdPages();
+        memory.read(2 * VirtualMemory.DEFAULT_PAGE_SIZE, 8);
+        memory.compressColdPages();
+        //the zero page is gone, the cold page is compressed and the touched page stays as it is
+        assertEquals(2, memory.pages.size());
+        assertTrue(memory.privateBytes() < 2 * VirtualMemory.DEFAULT_PAGE_SIZE);
+        for(int i = 0; i < VirtualMemory.DEFAULT_PAGE_SIZE; i += 8) assertEquals(i % 24, memory.read(i, 8));
+        assertEquals(1, memory.read(2 * VirtualMemory.DEFAULT_PAGE_SIZE, 8));
+        assertEquals(2 * VirtualMemory.DEFAULT_PAGE_SIZE, memory.privateBytes());
+
+        //compress and inflate cycles, with and without a snapshot in between, hand the inflated pages back to the backend
+        OffHeapMemoryBackend backend = new OffHeapMemoryBackend();
+        VirtualMemory offHeap = new VirtualMemory(backend);
+        int pageCount = 100;
+        for(int page = 0; page < pageCount; page++) offHeap.write((long) page * VirtualMemory.DEFAULT_PAGE_SIZE, 8, page + 1);
+        long reserved = backend.reservedBytes();
+        for(int cycle = 0; cycle < 6; cycle++){
+            offHeap.compressColdPages();
+            offHeap.compressColdPages();
+            MemoryImage image = cycle > 0 ? offHeap.snapshot() : null;
+            for(int page = 0; page < pageCount; page++){
+                long address = (long) page * VirtualMemory.DEFAULT_PAGE_SIZE;
+                assertEquals(page + 1, offHeap.read(address, 8));
+                if(image != null) offHeap.write(address, 8, -1);
+            }
+            if(image != null) offHeap.restore(image); //the image still holds the compressed pages
+            assertEquals(reserved, backend.reservedBytes());
+        }
+
+        //fills four data pages with 5, 6, 7, ..., spins while they get cold and halts with the first plus the last value
+        int[] program = {
+                0x56100001, 0x56020003, 0x56000502,
+                0x28020001, 0x38080101, 0x38010202, 0x39010303, 0x43FFFFFC,
+                0x56FFFF04, 0x39010404, 0x43FFFFFF,
+                0x18F80105, 0x56100001, 0x18000106, 0x30050607, 0x01070000};
+        long[] spinning = new long[2];
+        for(int compressed = 0; compressed < 2; compressed++){
+            ULM ulm = new ULM(new NullIO());
+            if(compressed == 1) ulm.setPageCompression(1000);
+            ulm.loadProgram(program);
+            assertEquals(RunResult.Status.BUDGET_EXHAUSTED, ulm.run(50000).status);
+            spinning[compressed] = ulm.privateMemoryBytes();
+            RunResult result = ulm.run(Long.MAX_VALUE);
+            assertEquals((5 + 516) & 0xFF, result.exitCode); //read back through inflated pages
+        }
+        //the code page is in use, the data pages shrink to a fraction
+        assertEquals(5 * VirtualMemory.DEFAULT_PAGE_SIZE, spinning[0]);
+        assertTrue(spinning[1] < 2 * VirtualMemory.DEFAULT_PAGE_SIZE);
+    }
+
+    @Test
+    void testMappedImage() throws IOException {
+        //pad to a full page so the program stays mapped until it patches itself
+        int[] program = getProgramSelfModifying();
+        ByteBuffer image = ByteBuffer.allocate(VirtualMemory.DEFAULT_PAGE_SIZE);
+        for(int word : program) image.putInt(word);
+        Path file = Files.createTempFile("ulm", ".img");
+        Path persisted = Files.createTempFile("ulm", ".img");
+        try {
+            Files.write(file, image.array());
+            ULM ulm = new ULM(new NullIO());
+            ulm.setPersistFile(persisted);
+            ulm.loadImage(file);
+            assertEquals(17, ulm.run());
+
+            ByteBuffer original = ByteBuffer.wrap(Files.readAllBytes(file));
+            ByteBuffer written = ByteBuffer.wrap(Files.readAllBytes(persisted));
+            assertEquals(program[2], original.getInt(8));
+            assertEquals(0x38100202, written.getInt(8));
+            assertEquals(program[3], written.getInt(12));
+        } finally {
+            Files.delete(file);
+            Files.delete(persisted);
+        }
+    }
+
+    @Test
+    void testPersistReplacesImage() throws IOException {
+        int pageSize = VirtualMemory.DEFAULT_PAGE_SIZE;
+        Path file = Files.createTempFile("ulm", ".img");
+        try {
+            byte[] stale = new byte[8 * pageSize];
+            Arrays.fill(stale, (byte) 0x77);
+            Files.write(file, stale);
+
+            //page 2 is never touched and must come back as zeros, the file must end behind page 3
+            VirtualMemory memory = new VirtualMemory();
+            memory.write(0, 8, 0x0123456789ABCDEFL);
+            memory.write(3L * pageSize + 8, 8, -2);
+            memory.persist(file);
+            assertEquals(4L * pageSize, Files.size(file));
+
+            VirtualMemory loaded = new VirtualMemory();
+            loaded.loadImage(file);
+            assertEquals(0x0123456789ABCDEFL, loaded.read(0, 8));
+            assertEquals(0, loaded.read(2L * pageSize, 8));
+            assertEquals(-2, loaded.read(3L * pageSize + 8, 8));
+            assertEquals(0, loaded.read(4L * pageSize, 8));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testPersistToMappedImage() throws IOException {
+        //the machine runs from the mapping of the very file it persists to at halt
+        int[] program = getProgramSelfModifying();
+        ByteBuffer image = ByteBuffer.allocate(2 * VirtualMemory.DEFAULT_PAGE_SIZE);
+        for(int word : program) image.putInt(word);
+        image.putLong(VirtualMemory.DEFAULT_PAGE_SIZE + 8, 0x0123456789ABCDEFL);
+        Path file = Files.createTempFile("ulm", ".img");
+        try {
+            Files.write(file, image.array());
+            ULM ulm = new ULM(new NullIO());
+            ulm.setPersistFile(file);
+            ulm.loadImage(file);
+            RunResult result = ulm.run(Long.MAX_VALUE);
+            assertEquals(RunResult.Status.HALTED, result.status);
+            assertEquals(17, result.exitCode);
+
+            ByteBuffer written = ByteBuffer.wrap(Files.readAllBytes(file));
+            assertEquals(2L * VirtualMemory.DEFAULT_PAGE_SIZE, written.capacity());
+            assertEquals(program[0], written.getInt(0));
+            assertEquals(0x38100202, written.getInt(8));
+            assertEquals(0x0123456789ABCDEFL, written.getLong(VirtualMemory.DEFAULT_PAGE_SIZE + 8));
+            try(Stream<Path> files = Files.list(file.getParent())){
+                assertFalse(files.anyMatch(other -> other.getFileName().toString().startsWith(file.getFileName().toString()) && other.toString().endsWith(".tmp")));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testTlbInvalidation(){
+        //off-heap pages are reused right after they are freed, a stale tlb entry would show another page's bytes
+        for(int pageSize : new int[]{VirtualMemory.MIN_PAGE_SIZE, VirtualMemory.DEFAULT_PAGE_SIZE, 4096}){
+            for(PageTableType type : PageTableType.values()){
+                VirtualMemory memory = new VirtualMemory(pageSize, new OffHeapMemoryBackend());
+                memory.setPageTableType(type);
+                long a = 3L * pageSize, b = 5L * pageSize;
+
+                //keys 64 pages apart share a tlb slot
+                long alias = a + 64L * pageSize;
+                memory.write(a, 8, 1);
+                memory.write(alias, 8, 2);
+                assertEquals(1, memory.read(a, 8));
+                assertEquals(2, memory.read(alias, 8));
+                memory.cacheDecoded(a, new DecodedInstruction(0, null));
+                assertTrue(memory.fetchDecoded(a) != null);
+                assertNull(memory.fetchDecoded(alias));
+
+                //an all zero page is dropped by the sweep and its buffer goes to the next new page
+                memory.reset();
+                memory.write(a, 8, 1);
+                memory.write(a, 8, 0);
+                memory.read(a, 8);
+                memory.compressColdPages();
+                memory.compressColdPages();
+                assertEquals(0, memory.pages.size());
+                memory.write(b, 8, 7);
+                assertEquals(0, memory.read(a, 8));
+                assertEquals(7, memory.read(b, 8));
+
+                //a compressed page is read back through its compressed copy, not through the freed buffer
+                memory.reset();
+                for(int i = 0; i < pageSize; i += 8) memory.write(a + i, 8, 1);
+                memory.read(a, 8);
+                memory.compressColdPages();
+                memory.compressColdPages();
+                memory.write(b, 8, 7);
+                assertEquals(1, memory.read(a + pageSize - 8, 8));
+
+                //a write after a snapshot goes to a private copy, reads follow it and the image keeps the old value
+                memory.reset();
+                memory.write(a, 8, 1);
+                memory.cacheDecoded(a, new DecodedInstruction(0, null));
+                assertEquals(1, memory.read(a, 8));
+                MemoryImage image = memory.snapshot();
+                memory.write(a + 8, 8, 2);
+                memory.write(a, 8, 3);
+                assertEquals(3, memory.read(a, 8));
+                assertNull(memory.fetchDecoded(a)); //dropped from the private copy the instruction tlb points to now
+
+                //restoring brings back the image's pages, also for addresses the tlb has cached
+                memory.restore(image);
+                assertEquals(1, memory.read(a, 8));
+                assertEquals(0, memory.read(a + 8, 8));
+                assertTrue(memory.fetchDecoded(a) != null);
+                memory.write(b, 8, 4);
+                VirtualMemory other = new VirtualMemory(pageSize);
+                other.write(b, 8, 5);
+                memory.restore(other.snapshot());
+                assertEquals(0, memory.read(a, 8));
+                assertEquals(5, memory.read(b, 8));
+
+                //a reset, a new page table or a new backend starts out empty, also for addresses the tlbs have cached
+                memory.reset();
+                assertEquals(0, memory.read(a, 8));
+                assertNull(memory.fetchDecoded(a));
+                memory.write(a, 8, 6);
+                memory.setPageTableType(type);
+                assertEquals(0, memory.read(a, 8));
+                memory.write(a, 8, 6);
+                memory.setBackend(new HeapMemoryBackend());
+                assertEquals(0, memory.read(a, 8));
+            }
+        }
     }
 
     @Test
@@ -165,6 +624,170 @@ public class Tests {
 
     }
 
+    @Test
+    void testJumpConditions(){
+        long[] values = {0, 1, 2, -1, -2, 100, -100, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1};
+        for(boolean lazy : new boolean[]{false, true}){
+            CPU cpu = new CPU();
+            cpu.alu.lazyFlags = lazy;
+            for(long y : values){
+                for(long x : values){
+                    //compare y with x through y - x, a following shift must not disturb the flags
+                    cpu.alu.sub(x, y, 1);
+                    cpu.alu.uLogicalShiftRight(new OperationField(0x00010102));
+                    checkJump(cpu, cpu::jz, y == x);
+                    checkJump(cpu, cpu::jnz, y != x);
+                    checkJump(cpu, cpu::jl, y < x);
+                    checkJump(cpu, cpu::jge, y >= x);
+                    checkJump(cpu, cpu::jle, y <= x);
+                    checkJump(cpu, cpu::jg, y > x);
+                    checkJump(cpu, cpu::jb, Long.compareUnsigned(y, x) < 0);
+                    checkJump(cpu, cpu::jae, Long.compareUnsigned(y, x) >= 0);
+                    checkJump(cpu, cpu::jbe, Long.compareUnsigned(y, x) <= 0);
+                    checkJump(cpu, cpu::ja, Long.compareUnsigned(y, x) > 0);
+                }
+            }
+        }
+
+        //flags of a deferred add survive a partial update by a load
+        ALU alu = new ALU();
+        alu.lazyFlags = true;
+        alu.registers[1] = -1;
+        alu.registers[2] = 1;
+        alu.rAdd(new OperationField(0x00010203));
+        alu.uLoad(new OperationField(0x00000104));
+        assertTrue(alu.cf());
+        assertFalse(alu.zf());
+        assertFalse(alu.of());
+        assertFalse(alu.sf());
+
+        //random mixes of full and partial flag updates end with the same flags in both modes
+        ALU eager = new ALU();
+        ALU lazy = new ALU();
+        lazy.lazyFlags = true;
+        long[] edges = {0, 1, -1, 2, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 62, 0xFFFFFFFFL};
+        Random random = new Random(7);
+        for(int i = 0; i < 100000; i++){
+            int regX = 1 + random.nextInt(3), regY = 1 + random.nextInt(3), regZ = 1 + random.nextInt(3);
+            if(random.nextInt(4) == 0){
+                long value = edges[random.nextInt(edges.length)];
+                eager.registers[regX] = lazy.registers[regX] = value;
+            }
+            OperationField opfield = new OperationField((regX << 16) | (regY << 8) | regZ);
+            OperationField immediate = new OperationField((random.nextInt(70) << 16) | (regY << 8) | regZ);
+            int operation = random.nextInt(8);
+            for(ALU target : new ALU[]{eager, lazy}){
+                switch(operation){
+                    case 0: target.rAdd(opfield); break;
+                    case 1: target.rSub(opfield); break;
+                    case 2: target.uLoad(immediate); break;
+                    case 3: target.and(opfield); break;
+                    case 4: target.or(opfield); break;
+                    case 5: target.not(opfield); break;
+                    case 6: target.uShiftLeft(immediate); break;
+                    default: target.rMul(opfield);
+                }
+            }
+            assertEquals(eager.zf, lazy.zf());
+            if(random.nextBoolean()) continue; //reading only zf must not disturb the others
+            assertEquals(eager.cf, lazy.cf());
+            assertEquals(eager.of, lazy.of());
+            assertEquals(eager.sf, lazy.sf());
+        }
+    }
+
+    @Test
+    void testJumpGreater(){
+        //jg jumps on !zf && sf == of, it used to test zf and never took the jump after a nonzero difference
+        CPU cpu = new CPU();
+        cpu.alu.sub(3, 5, 1);
+        checkJump(cpu, cpu::jg, true);
+        cpu.alu.sub(5, 5, 1);
+        checkJump(cpu, cpu::jg, false);
+        cpu.alu.sub(5, 3, 1);
+        checkJump(cpu, cpu::jg, false);
+
+        //do ++%2 while(--%1 > 0) runs 5 times in every engine
+        for(Engine engine : Engine.values()){
+            ULM ulm = new ULM(new NullIO());
+            ulm.setEngine(engine);
+            ulm.setCompileThreshold(0);
+            ulm.loadProgram(new int[]{0x56000501, 0x38010202, 0x39010101, 0x47FFFFFE, 0x01020000});
+            assertEquals(5, ulm.runHeadless());
+        }
+    }
+
+    private static void checkJump(CPU cpu, Consumer<OperationField> jump, boolean taken){
+        cpu.ip = 0;
+        cpu.jumped = false;
+        jump.accept(new OperationField(0x00000001));
+        assertEquals(taken, cpu.jumped);
+        assertEquals(taken ? 4 : 0, cpu.ip);
+    }
+
+    @Test
+    void testMulDiv128(){
+        long[] edges = {0, 1, 2, 3, -1, -2, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1,
+                0xFFFFFFFFL, 0x100000000L, 0x100000001L, 0xFFFFFFFF00000000L, 0x80000000L, 0x7FFFFFFFL,
+                0x8000000000000001L, 0x00000001FFFFFFFFL, 0xFFFFFFFEFFFFFFFFL, 17, 25, 1000000007L};
+        ALU alu = new ALU();
+        for(long a : edges){
+            for(long b : edges){
+                checkMul128(alu, a, b);
+                for(long c : edges){
+                    if(c != 0) checkDiv128(alu, a, b, c);
+                }
+            }
+        }
+        Random random = new Random(42);
+        for(int i = 0; i < 100000; i++){
+            long a = randomOperand(random);
+            long b = randomOperand(random);
+            long c = randomOperand(random);
+            checkMul128(alu, a, b);
+            if(c != 0) checkDiv128(alu, a, b, c);
+        }
+    }
+
+    //operands with few significant bits hit the correction steps of the long division more often
+    private static long randomOperand(Random random){
+        long value = random.nextLong();
+        switch(random.nextInt(4)){
+            case 0: return value >>> random.nextInt(64);
+            case 1: return value << random.nextInt(64);
+            case 2: return value | Long.MIN_VALUE;
+            default: return value;
+        }
+    }
+
+    private static void checkMul128(ALU alu, long a, long b){
+        BigInteger product = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b));
+        boolean overflow = product.shiftRight(64).longValue() != 0;
+        alu.registers[1] = a;
+        alu.registers[2] = b;
+        alu.cf = alu.of = false;
+        alu.rMul(new OperationField(0x00010203));
+        assertEquals(product.longValue(), alu.registers[3]);
+        assertEquals(overflow, alu.cf);
+        assertEquals(overflow, alu.of);
+    }
+
+    private static void checkDiv128(ALU alu, long low, long high, long divisor){
+        BigInteger dividend = unsigned(high).shiftLeft(64).or(unsigned(low));
+        BigInteger[] divAndRem = dividend.divideAndRemainder(unsigned(divisor));
+        alu.registers[1] = low;
+        alu.registers[2] = high;
+        alu.registers[3] = divisor;
+        alu.rDivUnsigned(new OperationField(0x00030104));
+        assertEquals(divAndRem[0].longValue(), alu.registers[4]);
+        assertEquals(divAndRem[0].shiftRight(64).longValue(), alu.registers[5]);
+        assertEquals(divAndRem[1].longValue(), alu.registers[6]);
+    }
+
+    private static BigInteger unsigned(long value){
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+
     @Test
     void testCPU(){
         //sign extend
@@ -214,4 +837,787 @@ public class Tests {
         assertTrue(cpu.jumped);
     }
 
+    @Test
+    void testScheduler() throws Exception {
+        //echoes its input until a zero character
+        int[] echo = {0x30000000, 0x60010000, 0x39000100, 0x42000003, 0x61010000, 0x41FFFFFC, 0x09000000};
+        Scheduler scheduler = new Scheduler(2, 3);
+        Session[] sessions = new Session[200];
+        BufferedIO[] ios = new BufferedIO[sessions.length];
+        for(int i = 0; i < sessions.length; i++){
+            ios[i] = new BufferedIO();
+            if(i % 2 == 0) ios[i].offer("x");
+            ULM ulm = new ULM(ios[i]);
+            ulm.loadProgram(echo);
+            sessions[i] = scheduler.submit(ulm);
+        }
+        for(int i = 0; i < sessions.length; i++) ios[i].offer("session " + i + "\0");
+        for(int i = 0; i < sessions.length; i++){
+            assertEquals(0, (int) sessions[i].getExit().get());
+            assertEquals((i % 2 == 0 ? "x" : "") + "session " + i, ios[i].getOutput());
+        }
+        assertEquals(0, scheduler.getActiveSessions());
+        assertTrue(scheduler.getRetiredInstructions() > 0);
+
+        //without an input listener a blocked session is parked and polled, not run again and again
+        PollingIO polling = new PollingIO();
+        ULM ulm = new ULM(polling);
+        ulm.loadProgram(echo);
+        Session session = scheduler.submit(ulm);
+        Thread.sleep(100);
+        assertTrue(session.isParked());
+        long retired = scheduler.getRetiredInstructions();
+        Thread.sleep(100);
+        assertEquals(retired, scheduler.getRetiredInstructions());
+        assertTrue(polling.polls.get() < 1000);
+        polling.offer("polled\0");
+        assertEquals(0, (int) session.getExit().get());
+        assertEquals("polled", polling.getOutput());
+
+        //an error thrown by the machine still completes the session
+        PollingIO failing = new PollingIO() {
+            @Override
+            public void putc(char c){ throw new StackOverflowError(); }
+        };
+        failing.offer("x\0");
+        ULM failingULM = new ULM(failing);
+        failingULM.loadProgram(echo);
+        CompletableFuture<Integer> failed = scheduler.submit(failingULM).getExit();
+        Throwable error = failed.handle((exitCode, thrown) -> thrown).get(10, TimeUnit.SECONDS);
+        assertTrue(error instanceof StackOverflowError);
+        assertEquals(0, scheduler.getActiveSessions());
+        scheduler.shutdown();
+    }
+
+    //an io device without an input listener that counts how often it is asked for input
+    private static class PollingIO implements IODevice {
+        final AtomicInteger polls = new AtomicInteger();
+        private final StringBuilder input = new StringBuilder();
+        private final StringBuilder output = new StringBuilder();
+
+        synchronized void offer(String chars){ input.append(chars); }
+
+        synchronized String getOutput(){ return output.toString(); }
+
+        @Override
+        public synchronized void putc(char c){ output.append(c); }
+
+        @Override
+        public synchronized char getc(){
+            char c = input.charAt(0);
+            input.deleteCharAt(0);
+            return c;
+        }
+
+        @Override
+        public synchronized boolean hasNextChar(){
+            polls.incrementAndGet();
+            return input.length() > 0;
+        }
+
+        @Override
+        public synchronized void reset(){
+            input.setLength(0);
+            output.setLength(0);
+        }
+    }
+
+    @Test
+    void testULMPool() throws IOException {
+        ULMPool pool = new ULMPool(1);
+        ULM first = pool.acquire(new NullIO());
+        first.setEngine(Engine.BASIC_BLOCK);
+        first.addObserver(new CountingObserver());
+        first.setProfiler(new Profiler());
+        first.setCallGraphProfiler(new CallGraphProfiler());
+        Path persisted = Files.createTempFile("ulm-pool", ".img");
+        first.setPersistFile(persisted);
+        first.loadProgram(getProgramSelfModifying());
+        assertEquals(17, first.runHeadless());
+        assertTrue(Files.size(persisted) > 0);
+        Files.delete(persisted);
+        pool.release(first);
+        assertEquals(1, pool.getIdleCount());
+
+        //the reused machine starts from a clean state
+        ULM second = pool.acquire(new NullIO());
+        assertTrue(first == second);
+        assertEquals(0, second.privateMemoryBytes());
+        assertFalse(second.isHalted());
+        assertFalse(second.isObserved());
+        assertNull(second.getProfiler());
+        assertNull(second.getCallGraphProfiler());
+        assertEquals(0, second.getIP());
+        second.loadProgram(new int[]{0x01020000}); //halt %2, registers are zero again
+        assertEquals(0, second.runHeadless());
+        assertFalse(Files.exists(persisted)); //the previous job's persist file is not written again
+        pool.release(second);
+        pool.release(new ULM(new NullIO()));
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    void testBatchRunner() throws Exception {
+        Path directory = Files.createTempDirectory("ulm-batch");
+        int[] echo = {0x30000000, 0x60010000, 0x39000100, 0x42000003, 0x61010000, 0x41FFFFFC, 0x09000000};
+        writeImage(directory.resolve("echo.img"), echo);
+        writeImage(directory.resolve("loop.img"), new int[]{0x41000000});
+        Files.writeString(directory.resolve("echo.1.in"), "hi\0");
+        Files.writeString(directory.resolve("echo.1.out"), "hi");
+        Files.writeString(directory.resolve("echo.2.in"), "ho\0");
+        Files.writeString(directory.resolve("echo.2.out"), "hi");
+        Files.writeString(directory.resolve("echo.3.in"), "h");
+        //echo.loud.1 belongs to echo.loud only, not to echo
+        writeImage(directory.resolve("echo.loud.img"), echo);
+        Files.writeString(directory.resolve("echo.loud.1.in"), "HI\0");
+        Files.writeString(directory.resolve("echo.loud.1.out"), "HI");
+
+        BatchRunner runner = new BatchRunner(2, 10000);
+        List<BatchResult> results = runner.run(BatchRunner.loadDirectory(directory));
+        runner.shutdown();
+        assertEquals(5, results.size());
+        assertEquals(BatchResult.Status.PASS, results.get(0).status);
+        assertEquals(BatchResult.Status.FAIL, results.get(1).status);
+        assertEquals("ho", results.get(1).output);
+        assertEquals(BatchResult.Status.FAIL, results.get(2).status);
+        assertEquals("echo.loud.1", results.get(3).job.name);
+        assertEquals(BatchResult.Status.PASS, results.get(3).status);
+        assertEquals("loop", results.get(4).job.name);
+        assertEquals(BatchResult.Status.TIMEOUT, results.get(4).status);
+
+        try(Stream<Path> files = Files.list(directory)){
+            for(Path file : files.collect(Collectors.toList())) Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private static void writeImage(Path file, int[] program) throws IOException {
+        ByteBuffer image = ByteBuffer.allocate(4 * program.length);
+        for(int word : program) image.putInt(word);
+        Files.write(file, image.array());
+    }
+
+    @Test
+    void testInstructionCache(){
+        VirtualMemory memory = new VirtualMemory();
+        memory.loadProgram(new int[]{0x38010202, 0x38010303, 0x01020000});
+        assertNull(memory.fetchDecoded(0));
+        DecodedInstruction decoded = new DecodedInstruction(0x38010202, null);
+        memory.cacheDecoded(0, decoded);
+        assertSame(decoded, memory.fetchDecoded(0));
+        assertNull(memory.fetchDecoded(4));
+        assertNull(memory.fetchDecoded(2)); //unaligned fetches never hit
+
+        //writes next to the instruction or on other pages keep it, a write over it drops it
+        int generation = memory.codeGeneration;
+        memory.write(4, 4, 0x38020303);
+        memory.write(VirtualMemory.DEFAULT_PAGE_SIZE, 8, 1);
+        assertSame(decoded, memory.fetchDecoded(0));
+        assertEquals(generation, memory.codeGeneration);
+        memory.write(0, 1, 0x39);
+        assertNull(memory.fetchDecoded(0));
+        assertTrue(memory.codeGeneration != generation);
+
+        //the machine decodes the patched instruction again: with a stale cache the program would halt with 2
+        ULM ulm = new ULM(new NullIO());
+        ulm.loadProgram(getProgramSelfModifying());
+        assertEquals(17, ulm.run());
+    }
+
+    @Test
+    void testTraceRecorder() throws IOException {
+        //a ring of four records wraps and waits for the writer all the time, yet loses nothing
+        String[] texts = new String[2];
+        for(int capacity : new int[]{4, TraceRecorder.DEFAULT_CAPACITY}){
+            Path file = Files.createTempFile("ulm", ".trace");
+            try {
+                ULM ulm = new ULM(new NullIO());
+                long records;
+                try(TraceRecorder recorder = new TraceRecorder(ulm, file, capacity)){
+                    ulm.loadProgram(getProgramSelfModifying());
+                    assertEquals(17, ulm.run());
+                    records = recorder.getRecordCount();
+                }
+                assertEquals(8 + records * TraceRecorder.RECORD_SIZE, Files.size(file));
+                StringBuilder text = new StringBuilder();
+                TraceReader.toText(file, text);
+                texts[capacity == 4 ? 0 : 1] = text.toString();
+            } finally {
+                Files.delete(file);
+            }
+        }
+        assertEquals(texts[0], texts[1]);
+        String[] lines = texts[0].split("\n");
+        assertEquals("0000000000000000  56000002  " + ULM.disassemble(0x56000002), lines[0]);
+        assertEquals("halt 17", lines[lines.length - 1]);
+        assertTrue(texts[0].contains("    [0000000000000008]:4 <- 0x0000000038100202"));
+    }
+
+    @Test
+    void testAsyncObservers(){
+        ULM ulm = new ULM(new NullIO());
+        CountingObserver direct = new CountingObserver();
+        ulm.addObserver(direct);
+        ulm.addObserverALU(direct);
+        ulm.addObserverMemory(direct);
+        ulm.loadProgram(getProgramSelfModifying());
+        assertEquals(17, ulm.run());
+
+        for(AsyncObserverDispatcher.OverflowPolicy policy : AsyncObserverDispatcher.OverflowPolicy.values()){
+            ulm = new ULM(new NullIO());
+            CountingObserver counting = new CountingObserver();
+            CountingObserver slow = new CountingObserver(){
+                @Override
+                public void onRead(int regId, long value){
+                    super.onRead(regId, value);
+                    LockSupport.parkNanos(100_000);
+                }
+            };
+            try(AsyncObserverDispatcher dispatcher = new AsyncObserverDispatcher(policy, 4)){
+                dispatcher.addObserver(counting);
+                dispatcher.addObserverALU(slow);
+                dispatcher.addObserverMemory(counting);
+                dispatcher.attach(ulm);
+                ulm.loadProgram(getProgramSelfModifying());
+                ulm.run();
+                dispatcher.flush();
+                assertEquals(17, counting.exitCode);
+                if(policy == AsyncObserverDispatcher.OverflowPolicy.BLOCK){
+                    assertEquals(0, dispatcher.getDroppedEvents());
+                    assertEquals(direct.instructions, counting.instructions);
+                    assertEquals(direct.memoryAccesses, counting.memoryAccesses);
+                    assertEquals(direct.registerAccesses, slow.registerAccesses);
+                } else {
+                    assertTrue(dispatcher.getDroppedEvents() > 0);
+                    assertEquals(direct.instructions + direct.memoryAccesses + direct.registerAccesses,
+                            counting.instructions + counting.memoryAccesses + slow.registerAccesses + dispatcher.getDroppedEvents());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testBasicBlockEngine(){
+        //the loop patches itself, its block has to be translated again to retire exactly what the interpreter does
+        ULM interpreter = new ULM(new NullIO());
+        interpreter.loadProgram(getProgramSelfModifying());
+        RunResult expected = interpreter.run(Long.MAX_VALUE);
+        ULM ulm = new ULM(new NullIO());
+        ulm.setEngine(Engine.BASIC_BLOCK);
+        ulm.loadProgram(getProgramSelfModifying());
+        RunResult result = ulm.run(Long.MAX_VALUE);
+        assertEquals(expected.exitCode, result.exitCode);
+        assertEquals(expected.retiredInstructions, result.retiredInstructions);
+
+        //the store patches the halt behind it within the same block
+        ulm.reset();
+        ulm.loadProgram(new int[]{
+                0x56090201,
+                0x5A100101,
+                0x29010C00,
+                0x09010000});
+        assertEquals(2, ulm.runHeadless());
+
+        //running into an illegal instruction halts instead of looping on an empty block
+        for(Engine engine : Engine.values()){
+            ulm.reset();
+            ulm.setEngine(engine);
+            ulm.loadProgram(new int[]{0x56000201, 0x00000000});
+            assertEquals(0, ulm.runHeadless());
+        }
+    }
+
+    @Test
+    void testTieredEngine(){
+        //compiled right away, the patching store has to leave the compiled loop
+        ULM ulm = new ULM(new NullIO());
+        ulm.setEngine(Engine.TIERED);
+        ulm.setCompileThreshold(0);
+        ulm.loadProgram(getProgramSelfModifying());
+        RunResult result = ulm.run(Long.MAX_VALUE);
+        assertEquals(17, result.exitCode);
+        assertEquals(0x38100202L, memoryOf(ulm).read(8, 4));
+
+        //compiled loop: 1000 times r2 += 3
+        ulm.reset();
+        ulm.loadProgram(new int[]{
+                0x5603E801,
+                0x38030202,
+                0x39010101,
+                0x43FFFFFE,
+                0x01020000});
+        assertEquals(3000 & 0xFF, ulm.runHeadless());
+    }
+
+    @Test
+    void testTieredMatchesInterpreter(){
+        Random random = new Random(7);
+        for(int seed = 0; seed < 200; seed++){
+            int[] program = randomLoop(random);
+            ULM reference = new ULM(new NullIO());
+            reference.loadProgram(program);
+            RunResult expected = reference.run(Long.MAX_VALUE);
+            VirtualMemory expectedMemory = memoryOf(reference);
+
+            for(Engine engine : new Engine[]{Engine.BASIC_BLOCK, Engine.TIERED}){
+                for(long budget : new long[]{Long.MAX_VALUE, 700}){
+                    ULM ulm = new ULM(new NullIO());
+                    ulm.setEngine(engine);
+                    ulm.setCompileThreshold(0);
+                    ulm.loadProgram(program);
+                    RunResult result;
+                    long retired = 0;
+                    do {
+                        result = ulm.run(budget);
+                        retired += result.retiredInstructions;
+                    } while(result.status == RunResult.Status.BUDGET_EXHAUSTED);
+
+                    String where = engine + " seed " + seed + " budget " + budget;
+                    assertEquals(expected.status, result.status, where);
+                    assertEquals(expected.exitCode, result.exitCode, where);
+                    assertEquals(expected.retiredInstructions, retired, where);
+                    VirtualMemory memory = memoryOf(ulm);
+                    for(long address : new long[]{0, 0x8000, 0x10000 - 64}){
+                        for(int i = 0; i < 4 * program.length; i += 8){
+                            assertEquals(expectedMemory.read(address + i, 8), memory.read(address + i, 8), where + " at " + (address + i));
+                        }
+                    }
+                }
+            }
+        }
+
+        //faults in a compiled block report the faulting instruction like the interpreter
+        int[][] faulting = {
+                //idivq by a counter that reaches zero, the division is interpreted from within the compiled loop
+                {0x5603E803, 0x39010303, 0x35030204, 0x43FFFFFE, 0x01000000},
+                //a misaligned movq behind a counted loop
+                {0x56000A03, 0x39010303, 0x43FFFFFF, 0x38010202, 0x18040006, 0x01000000},
+        };
+        for(int[] program : faulting){
+            ULM reference = new ULM(new NullIO());
+            reference.loadProgram(program);
+            RunResult expected = reference.run(Long.MAX_VALUE);
+            assertEquals(RunResult.Status.ERROR, expected.status);
+            for(Engine engine : new Engine[]{Engine.BASIC_BLOCK, Engine.TIERED}){
+                ULM ulm = new ULM(new NullIO());
+                ulm.setEngine(engine);
+                ulm.setCompileThreshold(0);
+                ulm.loadProgram(program);
+                RunResult result = ulm.run(Long.MAX_VALUE);
+                assertEquals(expected.message, result.message, engine.toString());
+                assertEquals(expected.retiredInstructions, result.retiredInstructions, engine.toString());
+                assertEquals(reference.getIP(), ulm.getIP(), engine.toString());
+                assertEquals(reference.getIR(), ulm.getIR(), engine.toString());
+            }
+        }
+    }
+
+    //a counted loop over random arithmetic, shifts, loads and stores around %20 = 0x10000 and flag tests that count in %31
+    //one addq in the loop is patched with the counter on every pass, the registers are stored to 0x8000 at the end
+    private static int[] randomLoop(Random random){
+        ArrayList<Integer> program = new ArrayList<>();
+        for(int r = 1; r <= 8; r++){
+            program.add(instruction(0x57, random.nextInt(256), random.nextInt(256), r));
+            program.add(instruction(0x5D, random.nextInt(256), random.nextInt(256), r));
+            program.add(instruction(0x5D, random.nextInt(256), random.nextInt(256), r));
+        }
+        program.add(instruction(0x56, 0, 1, 20));
+        program.add(instruction(0x5A, 16, 20, 20));
+        program.add(instruction(0x56, 0x80, 0, 24));
+        int patchTarget = program.size(); //%22 = address of the patched addq, set once the loop is laid out
+        program.add(0);
+        program.add(instruction(0x56, 0, 20 + random.nextInt(80), 30));
+
+        int loop = program.size();
+        int length = 3 + random.nextInt(16);
+        int patchAt = random.nextInt(length), storeAt = random.nextInt(length);
+        for(int i = 0; i < length; i++){
+            if(i == storeAt) program.add(instruction(0x23, 30, 22, 0)); //movb %30, (%22)
+            if(i == patchAt){
+                int patched = 4 * program.size() + 1;
+                program.set(patchTarget, instruction(0x56, patched >> 8, patched, 22));
+                program.add(instruction(0x38, 0, 23, 23));
+            }
+            program.add(randomInstruction(random));
+            if(random.nextInt(4) == 0){
+                if(random.nextBoolean()) program.add(instruction(0x31, 1 + random.nextInt(8), 1 + random.nextInt(8), 0));
+                program.add(((0x42 + random.nextInt(10)) << 24) | 2);
+                program.add(instruction(0x38, 1, 31, 31));
+            }
+        }
+        program.add(instruction(0x39, 1, 30, 30));
+        program.add((0x43 << 24) | ((loop - program.size()) & 0xFFFFFF));
+
+        int[] saved = {1, 2, 3, 4, 5, 6, 7, 8, 23, 30, 31};
+        for(int i = 0; i < saved.length; i++) program.add(instruction(0x28, saved[i], 8 * i, 24));
+        program.add(instruction(0x01, 1, 0, 0));
+        return program.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int randomInstruction(Random random){
+        int r = 1 + random.nextInt(8), s = 1 + random.nextInt(8), t = 1 + random.nextInt(8);
+        int size = random.nextInt(4); //1, 2, 4 or 8 bytes, the low opcode bits count down from quad
+        int offset = ((random.nextInt(16) - 8) << size) & 0xFF;
+        switch(random.nextInt(16)){
+            case 0: return instruction(0x30, r, s, t);
+            case 1: return instruction(0x31, r, s, t);
+            case 2: return instruction(0x38, random.nextInt(256), s, t);
+            case 3: return instruction(0x39, random.nextInt(256), s, t);
+            case 4: return instruction(0x34, r, s, t);
+            case 5: return instruction(0x3C, random.nextInt(256), s, t);
+            case 6: return instruction(0x50 + random.nextInt(2), r, s, t);
+            case 7: return instruction(0x5E, r, s, 0);
+            case 8: return instruction(0x52 + random.nextInt(3), r, s, t);
+            case 9: return instruction(0x5A + random.nextInt(3), random.nextInt(256), s, t);
+            case 10: return instruction(0x56 + random.nextInt(2), random.nextInt(256), random.nextInt(256), t);
+            case 11: return instruction(0x5D, random.nextInt(256), random.nextInt(256), t);
+            case 12: return instruction((size < 3 && random.nextBoolean() ? 0x1C : 0x18) + 3 - size, offset, 20, t); //movzbq ... movq, movsbq ... movslq
+            case 13: return instruction(0x28 + 3 - size, r, offset, 20);
+            case 14: return instruction(0x20 + 3 - size, r, 20, 0);
+            default: return instruction(0x10 + 3 - size, 20, 0, t);
+        }
+    }
+
+    private static int instruction(int opcode, int x, int y, int z){
+        return opcode << 24 | (x & 0xFF) << 16 | (y & 0xFF) << 8 | (z & 0xFF);
+    }
+
+    @Test
+    void testRunBudget(){
+        for(Engine engine : Engine.values()){
+            ULM ulm = new ULM(new NullIO());
+            ulm.setEngine(engine);
+            ulm.setCompileThreshold(0);
+
+            //1000 times r2 += 3, 3002 instructions in total
+            ulm.loadProgram(new int[]{0x5603E801, 0x38030202, 0x39010101, 0x43FFFFFE, 0x01020000});
+            RunResult result = ulm.run(1001);
+            assertEquals(RunResult.Status.BUDGET_EXHAUSTED, result.status);
+            assertTrue(result.retiredInstructions >= 1001 && result.retiredInstructions < 1001 + BasicBlock.MAX_LENGTH);
+            long first = result.retiredInstructions;
+            result = ulm.run(Long.MAX_VALUE);
+            assertEquals(RunResult.Status.HALTED, result.status);
+            assertEquals(3000 & 0xFF, result.exitCode);
+            assertEquals(3002, first + result.retiredInstructions);
+
+            //jmp 0 never ends
+            ulm.reset();
+            ulm.loadProgram(new int[]{0x41000000});
+            result = ulm.run(Duration.ofMillis(20));
+            assertEquals(RunResult.Status.BUDGET_EXHAUSTED, result.status);
+            assertTrue(result.retiredInstructions > 0);
+
+            //jmp %1 to address 1 faults
+            ulm.reset();
+            ulm.loadProgram(new int[]{0x56000101, 0x40010000});
+            result = ulm.run(100);
+            assertEquals(RunResult.Status.ERROR, result.status);
+            assertEquals("Alignment error", result.message);
+            assertTrue(ulm.isHalted());
+        }
+    }
+
+    @Test
+    void testRunBudgetEarlyExits(){
+        int[][] programs = {
+                //999 passes of subq, idivq, jnz, the 1000th pass faults in idivq by zero: 3000 instructions
+                {0x5603E803, 0x39010303, 0x35030204, 0x43FFFFFE, 0x01000000},
+                //the loop's store patches the block it is in
+                getProgramSelfModifying(),
+                //counts down, then blocks in getc behind an addq of the same block
+                {0x5603E801, 0x39010101, 0x43FFFFFF, 0x38010101, 0x60020000, 0x01000000},
+        };
+        RunResult.Status[] statuses = {RunResult.Status.ERROR, RunResult.Status.HALTED, RunResult.Status.BLOCKED};
+        for(int p = 0; p < programs.length; p++){
+            long expected = -1;
+            for(Engine engine : Engine.values()){
+                ULM ulm = new ULM(new NullIO());
+                ulm.setEngine(engine);
+                ulm.setCompileThreshold(0);
+                ulm.loadProgram(programs[p]);
+                RunResult result = ulm.run(Long.MAX_VALUE);
+                assertEquals(statuses[p], result.status, engine + " " + p);
+                if(engine == Engine.INTERPRETER) expected = result.retiredInstructions;
+                else assertEquals(expected, result.retiredInstructions, engine + " " + p);
+
+                //the same count when the budget splits the run somewhere inside
+                ulm.reset();
+                ulm.loadProgram(programs[p]);
+                long retired = ulm.run(1500).retiredInstructions;
+                retired += ulm.run(Long.MAX_VALUE).retiredInstructions;
+                assertEquals(expected, retired, engine + " " + p);
+            }
+        }
+
+        ULM ulm = new ULM(new NullIO());
+        ulm.loadProgram(programs[0]);
+        assertEquals(3000, ulm.run(Long.MAX_VALUE).retiredInstructions);
+    }
+
+    //the guest memory of a machine, read through a copy of its pages
+    private static VirtualMemory memoryOf(ULM ulm){
+        MemoryImage image = ulm.snapshot().getMemory();
+        VirtualMemory memory = new VirtualMemory(image.pageSize);
+        memory.restore(image);
+        return memory;
+    }
+
+    //executes addq 1,%2,%2 once, patches it to addq 16,%2,%2 and executes it again
+    private static int[] getProgramSelfModifying(){
+        return new int[]{
+                0x56000002,
+                0x56000003,
+                0x38010202,
+                0x39000300,
+                0x43000006,
+                0x38010303,
+                0x56381001,
+                0x5D020201,
+                0x29010800,
+                0x41FFFFF9,
+                0x01020000};
+    }
+
+    @Test
+    void testObserverAttachedMidRun(){
+        //1000 times %2 += 3, putc 'A', 1000 times %2 += 5, putc %2 and halt %2
+        int[] program = {
+                0x5603E801, 0x38030202, 0x39010101, 0x43FFFFFE, 0x69410000,
+                0x5603E801, 0x38050202, 0x39010101, 0x43FFFFFE, 0x61020000, 0x01020000};
+        for(Engine engine : Engine.values()){
+            //never observed, observed from the start and attached by the first putc
+            String[] outputs = new String[3];
+            int[] exitCodes = new int[3];
+            for(int mode = 0; mode < 3; mode++){
+                AttachingIO io = new AttachingIO();
+                ULM ulm = new ULM(io);
+                ulm.setEngine(engine);
+                ulm.setCompileThreshold(0);
+                if(mode == 1) io.attach(ulm);
+                if(mode == 2) io.attachOnPutc = ulm;
+                ulm.loadProgram(program);
+                exitCodes[mode] = ulm.runHeadless();
+                outputs[mode] = io.output.toString();
+                if(mode == 2){
+                    //every instruction behind the putc went through step, the halt reports no next instruction
+                    assertEquals(1 + 3 * 1000 + 1, io.observer.instructions);
+                    assertEquals(exitCodes[mode], io.observer.exitCode);
+                }
+            }
+            assertEquals(8000 & 0xFF, exitCodes[0]);
+            assertEquals("A" + (char) 8000, outputs[0]);
+            for(int mode = 1; mode < 3; mode++){
+                assertEquals(exitCodes[0], exitCodes[mode]);
+                assertEquals(outputs[0], outputs[mode]);
+            }
+        }
+    }
+
+    @Test
+    void testFilteredObservers(){
+        ULM ulm = new ULM(new NullIO());
+        LoggingObserver all = new LoggingObserver();
+        LoggingObserver filtered = new LoggingObserver();
+        BitSet registers = new BitSet();
+        registers.set(2);
+        ulm.addObserverALU(all);
+        ulm.addObserverMemory(all);
+        ulm.addObserverALU(filtered, registers);
+        ulm.addObserverMemory(filtered, 8, 4);
+        ulm.loadProgram(getProgramSelfModifying());
+        ulm.run();
+
+        List<String> expected = all.events.stream()
+                .filter(event -> event.startsWith("%2 ") || event.startsWith("[8]"))
+                .collect(Collectors.toList());
+        assertEquals(expected, filtered.events);
+        assertTrue(filtered.events.contains("[8] <- 38100202"));
+        assertTrue(filtered.events.contains("%2 <- 11"));
+
+        //an access overlapping the range only in part is reported, one next to it is not
+        VirtualMemory memory = new VirtualMemory();
+        LoggingObserver range = new LoggingObserver();
+        memory.addObserver(range, -2, 4);
+        memory.write(-8, 8, 1);
+        memory.write(0, 8, 2);
+        memory.write(8, 8, 3);
+        memory.read(-16, 8);
+        assertEquals(List.of("[-8] <- 1", "[0] <- 2"), range.events);
+    }
+
+    @Test
+    void testProfiler(){
+        ULM ulm = new ULM(new NullIO());
+        ulm.setEngine(Engine.TIERED);
+        Profiler profiler = new Profiler();
+        ulm.setProfiler(profiler);
+        ulm.loadProgram(new int[]{0x5603E801, 0x38030202, 0x39010101, 0x43FFFFFE, 0x01020000});
+        assertEquals(3000 & 0xFF, ulm.runHeadless());
+        assertEquals(3002, profiler.getRetiredInstructions());
+        assertEquals(1000, profiler.getInstructionCount(4));
+        assertEquals(1000, profiler.getOpcodeCount(0x38));
+        assertEquals(999, profiler.getTakenCount(12));
+        assertEquals(1, profiler.getInstructionCount(16));
+        String report = profiler.report(3);
+        assertTrue(report.contains("jnz"));
+        assertTrue(report.contains("taken 99.9%"));
+
+        profiler.reset();
+        ulm.reset();
+        ulm.loadProgram(getProgramSelfModifying());
+        ulm.runHeadless();
+        assertEquals(1, profiler.getPageWrites(8));
+        assertEquals(0, profiler.getPageReads(8));
+        assertEquals(1, profiler.getTakenCount(0x24));
+
+        //without a profiler the engine takes over again
+        long retired = profiler.getRetiredInstructions();
+        ulm.setProfiler(null);
+        ulm.reset();
+        ulm.loadProgram(getProgramSelfModifying());
+        ulm.runHeadless();
+        assertEquals(retired, profiler.getRetiredInstructions());
+
+        //run and an observed machine count the same as runHeadless
+        for (boolean observed : new boolean[]{false, true}) {
+            profiler = new Profiler();
+            ulm.setProfiler(profiler);
+            ulm.reset();
+            ulm.loadProgram(new int[]{0x5603E801, 0x38030202, 0x39010101, 0x43FFFFFE, 0x01020000});
+            if (observed) ulm.addObserver(new CountingObserver());
+            assertEquals(3000 & 0xFF, observed ? ulm.runHeadless() : ulm.run());
+            assertEquals(3002, profiler.getRetiredInstructions());
+            assertEquals(1000, profiler.getOpcodeCount(0x38));
+            assertEquals(999, profiler.getTakenCount(12));
+        }
+    }
+
+    @Test
+    void testCallGraphProfiler() throws IOException {
+        ULM ulm = new ULM(new NullIO());
+        CallGraphProfiler callGraph = new CallGraphProfiler();
+        ulm.setCallGraphProfiler(callGraph);
+        //main calls f at 0x20 twice, f calls g at 0x40, the link registers are %2 and %4
+        ulm.loadProgram(new int[]{
+                0x56002001, 0x40010200, 0x40010200, 0x09000000, 0, 0, 0, 0,
+                0x38010505, 0x56004003, 0x40030400, 0x40020000, 0, 0, 0, 0,
+                0x38010606, 0x40040000});
+        assertEquals(0, ulm.runHeadless());
+
+        assertEquals(16, callGraph.getInclusiveCount(0));
+        assertEquals(4, callGraph.getExclusiveCount(0));
+        assertEquals(12, callGraph.getInclusiveCount(0x20));
+        assertEquals(8, callGraph.getExclusiveCount(0x20));
+        assertEquals(4, callGraph.getInclusiveCount(0x40));
+        StringBuilder folded = new StringBuilder();
+        callGraph.writeFolded(folded);
+        assertEquals("0x0 4\n0x0;0x20 8\n0x0;0x20;0x40 4\n", folded.toString());
+        assertTrue(callGraph.report(2).contains("0x20"));
+    }
+
+    private static class LoggingObserver implements ObserverALU, ObserverMemory {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onRead(int regId, long value){ events.add("%" + regId + " -> " + Long.toHexString(value)); }
+
+        @Override
+        public void onWrite(int regId, long value){ events.add("%" + regId + " <- " + Long.toHexString(value)); }
+
+        @Override
+        public void onRead(long address, int numBytes, long value){ events.add("[" + address + "] -> " + Long.toHexString(value)); }
+
+        @Override
+        public void onWrite(long address, int numBytes, long value){ events.add("[" + address + "] <- " + Long.toHexString(value)); }
+
+        @Override
+        public void onLoadProgram(int[] program){}
+
+        @Override
+        public void reset(){}
+    }
+
+    private static class CountingObserver implements ObserverULM, ObserverALU, ObserverMemory {
+        int instructions, registerAccesses, memoryAccesses;
+        int exitCode = -1;
+
+        @Override
+        public void nextInstruction(int opfield, String disassembly){ instructions++; }
+
+        @Override
+        public void onHalt(int exitCode, String errorMessage){ this.exitCode = exitCode; }
+
+        @Override
+        public void onBlock(){}
+
+        @Override
+        public void onRead(int regId, long value){ registerAccesses++; }
+
+        @Override
+        public void onWrite(int regId, long value){ registerAccesses++; }
+
+        @Override
+        public void onRead(long address, int numBytes, long value){ memoryAccesses++; }
+
+        @Override
+        public void onWrite(long address, int numBytes, long value){ memoryAccesses++; }
+
+        @Override
+        public void onLoadProgram(int[] program){}
+
+        @Override
+        public void reset(){}
+    }
+
+    //collects the output and attaches a counting observer to the machine when asked to, e.g. from within the first putc
+    private static class AttachingIO implements IODevice {
+        final StringBuilder output = new StringBuilder();
+        final CountingObserver observer = new CountingObserver();
+        ULM attachOnPutc;
+
+        void attach(ULM ulm){
+            ulm.addObserver(observer);
+            ulm.addObserverALU(observer);
+            ulm.addObserverMemory(observer);
+        }
+
+        @Override
+        public void putc(char c) {
+            output.append(c);
+            if(attachOnPutc != null) attach(attachOnPutc);
+            attachOnPutc = null;
+        }
+
+        @Override
+        public char getc() {
+            return 0;
+        }
+
+        @Override
+        public boolean hasNextChar() {
+            return false;
+        }
+
+        @Override
+        public void reset() {}
+    }
+
+    private static class NullIO implements IODevice {
+        @Override
+        public void putc(char c) {}
+
+        @Override
+        public char getc() {
+            return 0;
+        }
+
+        @Override
+        public boolean hasNextChar() {
+            return false;
+        }
+
+        @Override
+        public void reset() {}
+    }
+
 }